@@ -0,0 +1,24 @@
+package com.synconset;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the threads of the plugin's background executors, named and at background priority so
+ * they stay out of the way of the UI.
+ */
+public class BackgroundThreadFactory implements ThreadFactory {
+    private final String name;
+
+    public BackgroundThreadFactory(String name) {
+        this.name = name;
+    }
+
+    public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, name);
+    }
+}
@@ -0,0 +1,126 @@
+package com.synconset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * The albums of the gallery, the folders MediaStore groups the images by, each with its number
+ * of images and its newest one as a cover. Newest album first.
+ * <p/>
+ * Made from a single query going over the gallery once, and kept until the gallery changes, see
+ * GalleryObserver.
+ */
+public class BucketIndex {
+    private static final String LOG_TAG = "BucketIndex";
+    private static final String[] PROJECTION = new String[] {
+        MediaStore.Images.Media.BUCKET_ID,
+        MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
+        MediaStore.Images.Media._ID
+    };
+
+    public static class Bucket {
+        public final String id;
+        public final String name;
+        public final long coverId;
+        public int count;
+
+        Bucket(String id, String name, long coverId) {
+            this.id = id;
+            this.name = name;
+            this.coverId = coverId;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("name", name);
+            json.put("count", count);
+            json.put("coverId", coverId);
+            return json;
+        }
+    }
+
+    private static BucketIndex instance;
+
+    private List<Bucket> buckets;
+    // The gallery generation the index was queried at.
+    private int bucketsGeneration;
+
+    public static synchronized BucketIndex getInstance() {
+        if (instance == null) {
+            instance = new BucketIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * @return The albums, queried the first time and after the gallery changed. Blocks then, to
+     * be called from a background thread.
+     */
+    public List<Bucket> getBuckets(Context context) {
+        GalleryObserver gallery = GalleryObserver.getInstance();
+        int queriedGeneration = gallery.observe(context);
+        synchronized (this) {
+            if (buckets != null && bucketsGeneration == queriedGeneration) {
+                return buckets;
+            }
+        }
+        long start = System.currentTimeMillis();
+        // MediaStore takes no GROUP BY, the rows are grouped here in the one pass.
+        Map<String, Bucket> byId = new LinkedHashMap<String, Bucket>();
+        Cursor cursor = context.getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                null, null, MediaQuery.SORT_ORDER);
+        if (cursor == null) {
+            return Collections.<Bucket>emptyList();
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String id = cursor.getString(0);
+                if (id == null) {
+                    continue;
+                }
+                Bucket bucket = byId.get(id);
+                if (bucket == null) {
+                    // Newest first, the first image seen is the cover.
+                    bucket = new Bucket(id, cursor.getString(1), cursor.getLong(2));
+                    byId.put(id, bucket);
+                }
+                bucket.count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        List<Bucket> result = Collections.unmodifiableList(new ArrayList<Bucket>(byId.values()));
+        synchronized (this) {
+            if (gallery.getGeneration() == queriedGeneration) {
+                buckets = result;
+                bucketsGeneration = queriedGeneration;
+            }
+        }
+        Log.d(LOG_TAG, result.size() + " albums indexed in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * @return The albums as { id, name, count, coverId } objects.
+     */
+    public JSONArray toJSON(Context context) throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Bucket bucket : getBuckets(context)) {
+            json.put(bucket.toJSON());
+        }
+        return json;
+    }
+}
@@ -0,0 +1,291 @@
+package com.synconset;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+/**
+ * Persistent cache of processed images, so picking the same photos again with the same
+ * options returns the file produced the first time instead of decoding and encoding again.
+ * <p/>
+ * Entries are plain files named after a hash of everything that affects the output (see
+ * {@link #key}), with an optional small metadata file next to them. The last modified date
+ * of a file is its last use, the oldest files are removed once the cache grows over its size
+ * cap. The cache never hands out its own files: an export gets a hard link to the entry, or a
+ * copy where links aren't available, in its own output directory. Evicting an entry then
+ * never takes away a result, and the app moving or deleting a result never breaks an entry.
+ */
+public class ExportCache {
+    private static final String LOG_TAG = "ExportCache";
+    private static final String DIRECTORY_NAME = "imagepicker-cache";
+    private static final String METADATA_EXT = ".meta";
+    private static final String PART_EXT = ".part";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 100 * 1024 * 1024;
+
+    private static ExportCache instance;
+
+    private final File directory;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int hits;
+    private int misses;
+
+    public static synchronized ExportCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ExportCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+        }
+        return instance;
+    }
+
+    private ExportCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Builds the cache key of an export. Any change to the source (DATE_MODIFIED, size) or
+     * to the requested output gives a different key.
+     *
+     * @param format The format the image is encoded to.
+     */
+    public static String key(SelectedImage image, ExportOptions options, String format) {
+        // Files outside the MediaStore have no id, their path stands in for it.
+        return (image.id >= 0 ? String.valueOf(image.id) : image.path) + "|" + image.dateModified + "|" + image.size + "|" + options.width + "|" + options.height + "|"
+                + options.quality + "|" + format + "|" + options.maxBytes + "|"
+                + (options.losslessRotation ? "exif" : "pixels");
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gives the target the content of the entry for this key, if there is one.
+     *
+     * @param target A file of the caller's own, replaced on a hit.
+     * @return false on a miss, the target is left untouched then.
+     */
+    public synchronized boolean get(String key, String ext, File target) {
+        File file = new File(directory, hash(key) + ext);
+        if (file.isFile() && link(file, target)) {
+            file.setLastModified(System.currentTimeMillis());
+            hits++;
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * @return The metadata stored with an entry, or null if there is none.
+     */
+    public synchronized String getMetadata(String key) {
+        File file = new File(directory, hash(key) + METADATA_EXT);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            in.close();
+            return new String(bytes, 0, read, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps a freshly processed file in the cache. The file itself stays where it is, the
+     * entry is a link to it or a copy.
+     *
+     * @param metadata Small piece of text to keep with the entry, or null.
+     */
+    public synchronized void put(String key, String ext, File file, String metadata) {
+        directory.mkdirs();
+        String name = hash(key);
+        File entry = new File(directory, name + ext);
+        if (!link(file, entry)) {
+            Log.w(LOG_TAG, "Unable to store " + file + " in the cache");
+            return;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        File metadataFile = new File(directory, name + METADATA_EXT);
+        if (metadata != null) {
+            try {
+                FileOutputStream out = new FileOutputStream(metadataFile);
+                out.write(metadata.getBytes("UTF-8"));
+                out.close();
+            } catch (IOException e) {
+                metadataFile.delete();
+            }
+        } else {
+            metadataFile.delete();
+        }
+        trim();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getCount() {
+        return listEntries().length;
+    }
+
+    public synchronized long getSize() {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits in its size cap.
+     */
+    private void trim() {
+        File[] files = listEntries();
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > maxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+                String name = files[i].getName();
+                int dot = name.lastIndexOf('.');
+                new File(directory, (dot >= 0 ? name.substring(0, dot) : name) + METADATA_EXT).delete();
+            }
+        }
+    }
+
+    /**
+     * Makes {@code to} a hard link to {@code from}, or a copy of it before Android 5.0 or if
+     * the link fails. It goes through a temporary file, {@code to} is replaced at once.
+     *
+     * @return false if neither worked.
+     */
+    private static boolean link(File from, File to) {
+        File part = new File(to.getPath() + PART_EXT);
+        part.delete();
+        boolean linked = false;
+        if (Build.VERSION.SDK_INT >= 21) {
+            try {
+                Os.link(from.getAbsolutePath(), part.getAbsolutePath());
+                linked = true;
+            } catch (ErrnoException e) {
+                Log.w(LOG_TAG, "Unable to link " + from + ", copying it: " + e.getMessage());
+            }
+        }
+        try {
+            if (!linked) {
+                copy(from, part);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to copy " + from + ": " + e.getMessage());
+            part.delete();
+            return false;
+        }
+        if (!part.renameTo(to)) {
+            part.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The cached images, without their metadata files.
+     */
+    private File[] listEntries() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return !name.endsWith(METADATA_EXT) && !name.endsWith(PART_EXT);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return toHex(digest.digest(key.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package com.synconset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * What an export should produce from each picked image.
+ */
+public class ExportOptions {
+    // Keeps the source format: PNG stays PNG, anything else is written as JPEG.
+    public static final String FORMAT_ORIGINAL = "original";
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_WEBP = "webp";
+    public static final String FORMAT_WEBP_LOSSLESS = "webp-lossless";
+
+    public int width;
+    public int height;
+    public int quality;
+    public boolean passthrough;
+    public boolean losslessRotation;
+    public boolean cache;
+    public long cacheSize = ExportCache.DEFAULT_MAX_BYTES;
+    public String format = FORMAT_ORIGINAL;
+    // Encoded size to stay under, 0 for no limit.
+    public long maxBytes;
+    // Smaller versions of each image to produce from the same decode, see fromIntent.
+    public final List<ExportOptions> renditions = new ArrayList<ExportOptions>();
+    // Report results as objects even when no other option needs it.
+    public boolean detailedResults;
+    // Hash every output, and collapse the ones with the same content.
+    public boolean hash;
+
+    public static ExportOptions fromIntent(Intent intent) {
+        ExportOptions options = new ExportOptions();
+        options.width = intent.getIntExtra(MultiImageChooserActivity.WIDTH_KEY, 0);
+        options.height = intent.getIntExtra(MultiImageChooserActivity.HEIGHT_KEY, 0);
+        options.quality = intent.getIntExtra(MultiImageChooserActivity.QUALITY_KEY, 0);
+        options.passthrough = intent.getBooleanExtra(MultiImageChooserActivity.PASSTHROUGH_KEY, false);
+        options.losslessRotation = intent.getBooleanExtra(MultiImageChooserActivity.LOSSLESS_ROTATION_KEY, false);
+        options.cache = intent.getBooleanExtra(MultiImageChooserActivity.CACHE_KEY, false);
+        options.cacheSize = intent.getLongExtra(MultiImageChooserActivity.CACHE_SIZE_KEY, ExportCache.DEFAULT_MAX_BYTES);
+        String format = intent.getStringExtra(MultiImageChooserActivity.FORMAT_KEY);
+        if (format != null) {
+            options.format = format;
+        }
+        options.maxBytes = intent.getLongExtra(MultiImageChooserActivity.MAX_BYTES_KEY, 0);
+        options.detailedResults = intent.getBooleanExtra(MultiImageChooserActivity.DETAILED_RESULTS_KEY, false);
+        options.hash = intent.getBooleanExtra(MultiImageChooserActivity.HASH_KEY, false);
+        String renditions = intent.getStringExtra(MultiImageChooserActivity.RENDITIONS_KEY);
+        if (renditions != null) {
+            try {
+                JSONArray list = new JSONArray(renditions);
+                for (int i = 0; i < list.length(); i++) {
+                    options.renditions.add(options.rendition(list.getJSONObject(i)));
+                }
+            } catch (JSONException e) {
+                Log.w("ExportOptions", "Ignoring invalid renditions: " + e.getMessage());
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Reads the options as given to the plugin from JavaScript.
+     */
+    public static ExportOptions fromParams(JSONObject params) throws JSONException {
+        ExportOptions options = new ExportOptions();
+        options.width = params.optInt("width", 0);
+        options.height = params.optInt("height", 0);
+        options.quality = params.optInt("quality", 100);
+        options.passthrough = params.optBoolean("passthrough", false);
+        options.losslessRotation = params.optBoolean("losslessRotation", false);
+        options.cache = params.optBoolean("cache", false);
+        options.cacheSize = params.optLong("cacheSize", ExportCache.DEFAULT_MAX_BYTES);
+        options.format = params.optString("format", FORMAT_ORIGINAL);
+        options.maxBytes = params.optLong("maxBytes", 0);
+        options.detailedResults = params.optBoolean("detailedResults", false);
+        options.hash = params.optBoolean("hash", false);
+        JSONArray list = params.optJSONArray("renditions");
+        if (list != null) {
+            for (int i = 0; i < list.length(); i++) {
+                options.renditions.add(options.rendition(list.getJSONObject(i)));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return The options in a form that can be written down and read back by fromJSON.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("width", width);
+        json.put("height", height);
+        json.put("quality", quality);
+        json.put("passthrough", passthrough);
+        json.put("losslessRotation", losslessRotation);
+        json.put("cache", cache);
+        json.put("cacheSize", cacheSize);
+        json.put("format", format);
+        json.put("maxBytes", maxBytes);
+        json.put("detailedResults", detailedResults);
+        json.put("hash", hash);
+        JSONArray list = new JSONArray();
+        for (ExportOptions rendition : renditions) {
+            list.put(rendition.toJSON());
+        }
+        json.put("renditions", list);
+        return json;
+    }
+
+    public static ExportOptions fromJSON(JSONObject json) throws JSONException {
+        ExportOptions options = new ExportOptions();
+        options.width = json.optInt("width", 0);
+        options.height = json.optInt("height", 0);
+        options.quality = json.optInt("quality", 0);
+        options.passthrough = json.optBoolean("passthrough", false);
+        options.losslessRotation = json.optBoolean("losslessRotation", false);
+        options.cache = json.optBoolean("cache", false);
+        options.cacheSize = json.optLong("cacheSize", ExportCache.DEFAULT_MAX_BYTES);
+        options.format = json.optString("format", FORMAT_ORIGINAL);
+        options.maxBytes = json.optLong("maxBytes", 0);
+        options.detailedResults = json.optBoolean("detailedResults", false);
+        options.hash = json.optBoolean("hash", false);
+        JSONArray list = json.optJSONArray("renditions");
+        if (list != null) {
+            for (int i = 0; i < list.length(); i++) {
+                options.renditions.add(fromJSON(list.getJSONObject(i)));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Reads a rendition spec, { width, height, quality, format }. The quality and format
+     * default to the ones of the main output. A rendition without any size is useless and
+     * rejected.
+     */
+    private ExportOptions rendition(JSONObject spec) throws JSONException {
+        ExportOptions rendition = new ExportOptions();
+        rendition.width = spec.optInt("width", 0);
+        rendition.height = spec.optInt("height", 0);
+        if (rendition.width <= 0 && rendition.height <= 0) {
+            throw new JSONException("A rendition needs a width or a height.");
+        }
+        rendition.quality = spec.optInt("quality", quality);
+        rendition.format = spec.optString("format", format);
+        rendition.losslessRotation = losslessRotation;
+        rendition.cache = cache;
+        return rendition;
+    }
+
+    /**
+     * @return true if the results are reported as objects rather than plain URIs, which is
+     * the case as soon as an option needs more than the URI to be reported.
+     */
+    public boolean hasDetailedResults() {
+        return detailedResults || hash || passthrough || maxBytes > 0 || !FORMAT_ORIGINAL.equals(format) || !renditions.isEmpty();
+    }
+}
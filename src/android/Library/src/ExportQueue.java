@@ -0,0 +1,678 @@
+package com.synconset;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs the exports, independently of the activity that started them.
+ * <p/>
+ * Every export is a job with a manifest on disk: the options and the picked images, written
+ * once, and a log the result of each image is appended to. If the process dies, the
+ * jobs still running are picked up again the next time the queue is created, skipping the
+ * images already done. They are read back on the queue's thread, looking a job up waits for
+ * that. A finished job is kept until its results are delivered to the app.
+ */
+public class ExportQueue {
+    private static final String LOG_TAG = "ExportQueue";
+    private static final String DIRECTORY_NAME = "imagepicker-jobs";
+    private static final String MANIFEST_EXT = ".json";
+    private static final String LOG_EXT = ".log";
+
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_CANCELLED = "cancelled";
+    public static final String STATUS_FAILED = "failed";
+
+    private static ExportQueue instance;
+
+    private final Context context;
+    private final File directory;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Job> jobs = Collections.synchronizedMap(new LinkedHashMap<String, Job>());
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    // Lookups waiting for the jobs to be read back. Guards the end of the load too.
+    private final List<Runnable> pendingLookups = new ArrayList<Runnable>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new BackgroundThreadFactory("ImagePicker-export"));
+    private int jobIndex = 0;
+
+    /**
+     * Given the job looked up by {@link #getJob(String, JobCallback)}, on the main thread.
+     */
+    public interface JobCallback {
+        void onJob(Job job);
+    }
+
+    /**
+     * Told about the progress of a job, on the main thread.
+     */
+    public interface Listener {
+        void onProgress(Job job, int done, int total);
+
+        void onFinished(Job job);
+    }
+
+    /**
+     * An export under way when the job is submitted, typically started while the user was
+     * still picking. The job waits for it instead of exporting the image again.
+     */
+    public interface StartedExport {
+        /**
+         * Waits for the export to finish.
+         *
+         * @throws ImageExporter.CancelledException if it was stopped.
+         */
+        ImageExporter.Result getResult() throws IOException;
+
+        void stop();
+
+        void discard();
+    }
+
+    /**
+     * Creating the queue resumes the jobs an earlier process didn't finish, in the background.
+     * The output directory must only be cleaned up once {@link #awaitLoaded()} returns, so
+     * their sessions are kept.
+     */
+    public static synchronized ExportQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new ExportQueue(context.getApplicationContext());
+            instance.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        instance.resume();
+                    } finally {
+                        instance.finishLoading();
+                    }
+                }
+            });
+        }
+        return instance;
+    }
+
+    private ExportQueue(Context context) {
+        this.context = context;
+        this.directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Queues the export of the given images into the session.
+     *
+     * @param started Exports already under way, by path. The job takes them over.
+     */
+    public Job submit(ExportOptions options, List<SelectedImage> images, OutputStore.Session session,
+            Map<String, StartedExport> started) throws IOException {
+        String id;
+        synchronized (this) {
+            id = System.currentTimeMillis() + "-" + jobIndex++;
+        }
+        Job job = new Job(this, id, options, images, session, started);
+        job.saveHeader();
+        jobs.put(id, job);
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * Waits until the jobs of an earlier process are read back. Blocks, not for the UI thread
+     * unless there is no way around it.
+     */
+    public void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finishLoading() {
+        synchronized (pendingLookups) {
+            loaded.countDown();
+            for (Runnable lookup : pendingLookups) {
+                handler.post(lookup);
+            }
+            pendingLookups.clear();
+        }
+    }
+
+    /**
+     * Looks a job up without blocking, once the jobs of an earlier process are read back.
+     * The callback gets null if there is no such job or it was delivered already.
+     */
+    public void getJob(final String id, final JobCallback callback) {
+        Runnable lookup = new Runnable() {
+            public void run() {
+                callback.onJob(id != null ? jobs.get(id) : null);
+            }
+        };
+        synchronized (pendingLookups) {
+            if (loaded.getCount() > 0) {
+                pendingLookups.add(lookup);
+                return;
+            }
+        }
+        handler.post(lookup);
+    }
+
+    /**
+     * Waits for the jobs of an earlier process to be read back, see awaitLoaded.
+     *
+     * @return The job, or null if there is no such job or it was delivered already.
+     */
+    public Job getJob(String id) {
+        if (id == null) {
+            return null;
+        }
+        awaitLoaded();
+        return jobs.get(id);
+    }
+
+    /**
+     * @return The jobs that were not delivered yet, running or finished.
+     */
+    public List<Job> getJobs() {
+        awaitLoaded();
+        synchronized (jobs) {
+            return new ArrayList<Job>(jobs.values());
+        }
+    }
+
+    /**
+     * Forgets a finished job once its results are handed to the app.
+     *
+     * @return false if the job was delivered already, by a call racing this one.
+     */
+    public boolean delivered(Job job) {
+        if (jobs.remove(job.id) == null) {
+            return false;
+        }
+        job.getManifest().delete();
+        job.getLog().delete();
+        return true;
+    }
+
+    private void resume() {
+        File[] manifests = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(MANIFEST_EXT);
+            }
+        });
+        if (manifests == null) {
+            return;
+        }
+        long maxAge = OutputStore.getInstance(context).getMaxAge();
+        for (File manifest : manifests) {
+            if (jobs.containsKey(manifest.getName().replace(MANIFEST_EXT, ""))) {
+                // Submitted by this process while the earlier jobs were being read.
+                continue;
+            }
+            try {
+                Job job = Job.read(this, readFile(manifest), new File(directory, manifest.getName().replace(MANIFEST_EXT, LOG_EXT)));
+                if (job.isFinished()) {
+                    if (System.currentTimeMillis() - manifest.lastModified() > maxAge) {
+                        // Never picked up and past the output directory's age limit, its files go too.
+                        if (job.session != null) {
+                            job.session.abort();
+                        }
+                        job.getManifest().delete();
+                        job.getLog().delete();
+                    } else {
+                        jobs.put(job.id, job);
+                    }
+                } else if (job.session == null) {
+                    Log.w(LOG_TAG, "Dropping job " + job.id + ", its output is gone");
+                    job.getManifest().delete();
+                    job.getLog().delete();
+                } else {
+                    Log.d(LOG_TAG, "Resuming job " + job.id);
+                    jobs.put(job.id, job);
+                    executor.execute(job);
+                }
+            } catch (Exception e) {
+                // Unreadable or inconsistent, the job can't be resumed either way.
+                Log.w(LOG_TAG, "Dropping unreadable job " + manifest.getName());
+                manifest.delete();
+                new File(directory, manifest.getName().replace(MANIFEST_EXT, LOG_EXT)).delete();
+            }
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new String(bytes, 0, read, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * One export: the images picked at once and their results.
+     */
+    public static class Job implements Runnable {
+        public final String id;
+        public final ExportOptions options;
+        public final List<SelectedImage> images;
+
+        private final ExportQueue queue;
+        private OutputStore.Session session;
+        private final ImageExporter.Result[] results;
+        // Why each image that couldn't be exported failed, the others go on.
+        private final String[] errors;
+        private final Map<String, StartedExport> started;
+        private final ImageExporter.Cancellation cancellation = new ImageExporter.Cancellation();
+        private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+        private volatile String status = STATUS_RUNNING;
+        private String error;
+        private List<ImageExporter.Result> collapsed;
+        private int doneCount;
+
+        private Job(ExportQueue queue, String id, ExportOptions options, List<SelectedImage> images,
+                OutputStore.Session session, Map<String, StartedExport> started) {
+            this.queue = queue;
+            this.id = id;
+            this.options = options;
+            this.images = images;
+            this.session = session;
+            this.results = new ImageExporter.Result[images.size()];
+            this.errors = new String[images.size()];
+            this.started = Collections.synchronizedMap(new HashMap<String, StartedExport>(started));
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isFinished() {
+            return !STATUS_RUNNING.equals(status);
+        }
+
+        /**
+         * @return Why the job failed, if it did.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public synchronized int getDoneCount() {
+            return doneCount;
+        }
+
+        /**
+         * @return The results of a finished job, duplicates collapsed.
+         */
+        public synchronized List<ImageExporter.Result> getResults() {
+            if (collapsed != null) {
+                return collapsed;
+            }
+            List<ImageExporter.Result> list = new ArrayList<ImageExporter.Result>();
+            for (ImageExporter.Result result : results) {
+                if (result != null) {
+                    list.add(result);
+                }
+            }
+            return list;
+        }
+
+        /**
+         * Marks the files of the job as handed back to the app, the output limits apply to
+         * them from then on. Until then they are kept, however large the export.
+         */
+        public void handedBack() {
+            if (session != null && !STATUS_FAILED.equals(status)) {
+                session.complete();
+            }
+        }
+
+        /**
+         * @return The images that couldn't be exported and why, in the order they were picked.
+         */
+        public synchronized Map<SelectedImage, String> getFailures() {
+            Map<SelectedImage, String> failures = new LinkedHashMap<SelectedImage, String>();
+            for (int i = 0; i < errors.length; i++) {
+                if (errors[i] != null) {
+                    failures.put(images.get(i), errors[i]);
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * Adds a listener, told right away if the job is finished already.
+         */
+        public void addListener(final Listener listener) {
+            listeners.add(listener);
+            if (isFinished()) {
+                queue.handler.post(new Runnable() {
+                    public void run() {
+                        if (listeners.contains(listener)) {
+                            listener.onFinished(Job.this);
+                        }
+                    }
+                });
+            }
+        }
+
+        public void removeListener(Listener listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * Stops the job, the images done so far are kept.
+         */
+        public void cancel() {
+            cancellation.cancel();
+            synchronized (started) {
+                for (StartedExport export : started.values()) {
+                    export.stop();
+                }
+            }
+        }
+
+        public void run() {
+            ImageExporter exporter = new ImageExporter(queue.context, options);
+            try {
+                for (int i = 0; i < images.size(); i++) {
+                    SelectedImage image = images.get(i);
+                    StartedExport export = started.remove(image.path);
+                    synchronized (this) {
+                        if (results[i] != null || errors[i] != null) {
+                            continue;
+                        }
+                    }
+                    if (cancellation.isCancelled()) {
+                        if (export != null) {
+                            export.discard();
+                        }
+                        continue;
+                    }
+                    ImageExporter.Result result = null;
+                    String failure = null;
+                    try {
+                        if (export != null) {
+                            result = export.getResult();
+                        } else {
+                            result = exporter.export(image, session, cancellation);
+                        }
+                    } catch (ImageExporter.CancelledException e) {
+                        // What the image had written is gone already, the others are skipped.
+                        if (export != null) {
+                            export.discard();
+                        }
+                        continue;
+                    } catch (IOException e) {
+                        failure = e.getMessage();
+                    } catch (RuntimeException e) {
+                        // Recorded like any other failure, a resumed job doesn't try the image again.
+                        failure = e.toString();
+                    } catch (OutOfMemoryError e) {
+                        failure = e.toString();
+                    }
+                    if (result != null) {
+                        synchronized (this) {
+                            results[i] = result;
+                            doneCount++;
+                        }
+                        appendResult(i, result);
+                    } else {
+                        Log.w(LOG_TAG, "Unable to export " + image.path + ": " + failure);
+                        synchronized (this) {
+                            errors[i] = failure != null ? failure : "Unable to export the image.";
+                            doneCount++;
+                        }
+                        appendError(i, errors[i]);
+                    }
+                    notifyProgress();
+                }
+                synchronized (this) {
+                    collapsed = exporter.collapseDuplicates(getResults());
+                    status = cancellation.isCancelled() ? STATUS_CANCELLED : STATUS_DONE;
+                }
+                // The session is only completed once the results are handed back, see handedBack.
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e.getMessage();
+                    status = STATUS_FAILED;
+                }
+                // Only the session's own files go, originals and cache entries live elsewhere.
+                session.abort();
+            }
+            try {
+                appendStatus(getCollapsedIndexes());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to save job " + id + ": " + e.getMessage());
+            }
+            queue.handler.post(new Runnable() {
+                public void run() {
+                    for (Listener listener : listeners) {
+                        listener.onFinished(Job.this);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return The indexes of the results left once duplicates were collapsed, null before.
+         */
+        private synchronized List<Integer> getCollapsedIndexes() {
+            if (collapsed == null) {
+                return null;
+            }
+            Map<ImageExporter.Result, Integer> indexes = new IdentityHashMap<ImageExporter.Result, Integer>();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) {
+                    indexes.put(results[i], i);
+                }
+            }
+            List<Integer> kept = new ArrayList<Integer>();
+            for (ImageExporter.Result result : collapsed) {
+                kept.add(indexes.get(result));
+            }
+            return kept;
+        }
+
+        private void notifyProgress() {
+            final int done = getDoneCount();
+            queue.handler.post(new Runnable() {
+                public void run() {
+                    for (Listener listener : listeners) {
+                        listener.onProgress(Job.this, done, images.size());
+                    }
+                }
+            });
+        }
+
+        private File getManifest() {
+            return new File(queue.directory, id + MANIFEST_EXT);
+        }
+
+        private File getLog() {
+            return new File(queue.directory, id + LOG_EXT);
+        }
+
+        /**
+         * Writes the part of the manifest that doesn't change, through a temporary file so a
+         * crash never leaves half of one.
+         */
+        private void saveHeader() throws IOException {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("id", id);
+                json.put("session", session.getName());
+                json.put("options", options.toJSON());
+                JSONArray list = new JSONArray();
+                for (SelectedImage image : images) {
+                    list.put(image.toJSON());
+                }
+                json.put("images", list);
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+            queue.directory.mkdirs();
+            File temp = new File(queue.directory, id + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(json.toString().getBytes("UTF-8"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(getManifest())) {
+                temp.delete();
+                throw new IOException("Unable to save job " + id);
+            }
+        }
+
+        /**
+         * Records one step of the job, a result or the final status, at the end of its log.
+         * The log only grows by one line per image, however large the job. A line cut short
+         * by a crash is ignored when reading it back.
+         */
+        private void append(JSONObject entry) throws IOException {
+            FileOutputStream out = new FileOutputStream(getLog(), true);
+            try {
+                out.write((entry.toString() + "\n").getBytes("UTF-8"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void appendResult(int index, ImageExporter.Result result) throws IOException {
+            try {
+                append(new JSONObject().put("index", index).put("result", result.toJSON()));
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        private void appendError(int index, String message) throws IOException {
+            try {
+                append(new JSONObject().put("index", index).put("error", message));
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        private void appendStatus(List<Integer> kept) throws IOException {
+            try {
+                JSONObject entry = new JSONObject();
+                entry.put("status", status);
+                entry.putOpt("error", error);
+                if (kept != null) {
+                    entry.put("collapsed", new JSONArray(kept));
+                }
+                append(entry);
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        private static Job read(ExportQueue queue, String manifest, File log) throws JSONException, IOException {
+            JSONObject json = new JSONObject(manifest);
+            JSONArray list = json.getJSONArray("images");
+            List<SelectedImage> images = new ArrayList<SelectedImage>();
+            for (int i = 0; i < list.length(); i++) {
+                images.add(SelectedImage.fromJSON(list.getJSONObject(i)));
+            }
+            Job job = new Job(queue, json.getString("id"), ExportOptions.fromJSON(json.getJSONObject("options")),
+                    images, null, new HashMap<String, StartedExport>());
+            JSONArray kept = null;
+            if (log.exists()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        JSONObject entry;
+                        try {
+                            entry = new JSONObject(line);
+                        } catch (JSONException e) {
+                            continue;
+                        }
+                        if (entry.has("result")) {
+                            int index = entry.getInt("index");
+                            if (job.results[index] == null) {
+                                job.doneCount++;
+                            }
+                            job.results[index] = ImageExporter.Result.fromJSON(images.get(index), entry.getJSONObject("result"));
+                        } else if (entry.has("index")) {
+                            int index = entry.getInt("index");
+                            if (job.errors[index] == null) {
+                                job.doneCount++;
+                            }
+                            job.errors[index] = entry.getString("error");
+                        } else if (entry.has("status")) {
+                            job.status = entry.getString("status");
+                            job.error = entry.has("error") ? entry.getString("error") : null;
+                            kept = entry.optJSONArray("collapsed");
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            if (kept != null) {
+                job.collapsed = new ArrayList<ImageExporter.Result>();
+                for (int i = 0; i < kept.length(); i++) {
+                    job.collapsed.add(job.results[kept.getInt(i)]);
+                }
+            }
+            if (!job.isFinished()) {
+                // A result whose file went away is done again.
+                for (int i = 0; i < job.results.length; i++) {
+                    if (job.results[i] != null && !job.results[i].file.exists()) {
+                        job.results[i] = null;
+                        job.doneCount--;
+                    }
+                }
+            }
+            if (!STATUS_FAILED.equals(job.status)) {
+                // Results not handed back yet are kept from the startup cleanup too.
+                job.session = OutputStore.getInstance(queue.context).resumeSession(json.getString("session"));
+            }
+            return job;
+        }
+    }
+}
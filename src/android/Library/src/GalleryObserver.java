@@ -0,0 +1,51 @@
+package com.synconset;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.MediaStore;
+
+/**
+ * Counts the changes to the gallery, for what is kept from a query until the gallery changes:
+ * the first screen of PickerWarmUp and the albums of BucketIndex. Something queried at one
+ * generation is stale once the generation moved on.
+ */
+public class GalleryObserver {
+    private static GalleryObserver instance;
+
+    private boolean observing;
+    private int generation;
+
+    public static synchronized GalleryObserver getInstance() {
+        if (instance == null) {
+            instance = new GalleryObserver();
+        }
+        return instance;
+    }
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (GalleryObserver.this) {
+                generation++;
+            }
+        }
+    };
+
+    /**
+     * Starts observing the gallery if it wasn't yet. To be called before querying it.
+     *
+     * @return The current generation, the one the query about to be made belongs to.
+     */
+    public synchronized int observe(Context context) {
+        if (!observing) {
+            // Observes for as long as the process lives, not tied to the context given.
+            context.getApplicationContext().getContentResolver().registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, observer);
+            observing = true;
+        }
+        return generation;
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+}
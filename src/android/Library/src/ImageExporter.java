@@ -0,0 +1,1007 @@
+package com.synconset;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.apache.cordova.LOG;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Turns one picked image into the file handed back to the app: resized, rotated and
+ * re-encoded when needed, copied or passed through as is otherwise.
+ * <p/>
+ * An exporter holds no per-image state, several images can be exported at once.
+ */
+public class ImageExporter {
+    private static final String LOG_TAG = "ImagePicker";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ExportOptions exportOptions;
+    private final ExportCache cache;
+
+    /**
+     * The file produced for one image.
+     */
+    public static class Result {
+        public final SelectedImage image;
+        public final File file;
+        // The file is the user's own picture, not a copy.
+        public final boolean original;
+        // The file was served from the export cache. It is a file of the session all the same.
+        public final boolean cached;
+        public final String format;
+        // The encoding quality, -1 when the file wasn't encoded (copy, passthrough, unknown).
+        public final int quality;
+        // Size of the stored pixels, 0 when unknown.
+        public final int width;
+        public final int height;
+        // The orientation was applied to the pixels. Otherwise the image still has to be
+        // rotated by image.rotation, as its EXIF header says.
+        public final boolean rotated;
+        // SHA-256 of the file, hex encoded, null unless asked for.
+        public final String sha256;
+        // MediaStore ids of the other picked images that gave the exact same file, collapsed
+        // into this result.
+        public final List<Long> duplicates = new ArrayList<Long>();
+        // The smaller versions of the image, if renditions were asked for.
+        public final List<Result> renditions = new ArrayList<Result>();
+        // Time spent producing the result, in milliseconds.
+        public long processingTime;
+        // The file is within the maxBytes asked for. A lossless output (PNG, lossless WebP)
+        // can't be made smaller, and a lossy one may not fit even at the lowest quality.
+        public boolean limitMet = true;
+
+        public Result(SelectedImage image, File file, boolean original, boolean cached, String format, int quality,
+                int width, int height, boolean rotated, String sha256) {
+            this.image = image;
+            this.file = file;
+            this.original = original;
+            this.cached = cached;
+            this.format = format;
+            this.quality = quality;
+            this.width = width;
+            this.height = height;
+            this.rotated = rotated;
+            this.sha256 = sha256;
+        }
+
+        public String getUri() {
+            return Uri.fromFile(file).toString();
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("uri", getUri());
+            json.put("original", original);
+            json.put("cached", cached);
+            json.put("format", format);
+            if (quality >= 0) {
+                json.put("quality", quality);
+            }
+            json.put("bytes", file.length());
+            json.put("mimeType", getMimeType(format));
+            if (width > 0 && height > 0) {
+                json.put("width", width);
+                json.put("height", height);
+            }
+            json.put("orientation", image.rotation);
+            json.put("rotated", rotated);
+            json.put("id", image.id);
+            if (image.dateTaken > 0) {
+                json.put("dateTaken", image.dateTaken);
+            }
+            json.put("processingTime", processingTime);
+            if (!limitMet) {
+                json.put("limitMet", false);
+            }
+            if (sha256 != null) {
+                json.put("sha256", sha256);
+            }
+            if (!duplicates.isEmpty()) {
+                json.put("duplicates", new JSONArray(duplicates));
+            }
+            if (!renditions.isEmpty()) {
+                JSONArray list = new JSONArray();
+                for (Result rendition : renditions) {
+                    list.put(rendition.toJSON());
+                }
+                json.put("renditions", list);
+            }
+            return json;
+        }
+
+        /**
+         * Reads back a result described by toJSON.
+         */
+        public static Result fromJSON(SelectedImage image, JSONObject json) throws JSONException {
+            Result result = new Result(image, new File(Uri.parse(json.getString("uri")).getPath()),
+                    json.optBoolean("original", false), json.optBoolean("cached", false), json.optString("format", null),
+                    json.optInt("quality", -1), json.optInt("width", 0), json.optInt("height", 0),
+                    json.optBoolean("rotated", false), json.has("sha256") ? json.getString("sha256") : null);
+            result.processingTime = json.optLong("processingTime", 0);
+            result.limitMet = json.optBoolean("limitMet", true);
+            JSONArray duplicates = json.optJSONArray("duplicates");
+            if (duplicates != null) {
+                for (int i = 0; i < duplicates.length(); i++) {
+                    result.duplicates.add(duplicates.getLong(i));
+                }
+            }
+            JSONArray renditions = json.optJSONArray("renditions");
+            if (renditions != null) {
+                for (int i = 0; i < renditions.length(); i++) {
+                    result.renditions.add(fromJSON(image, renditions.getJSONObject(i)));
+                }
+            }
+            return result;
+        }
+    }
+
+    public ImageExporter(Context context, ExportOptions exportOptions) {
+        this.exportOptions = exportOptions;
+        if (exportOptions.cache) {
+            cache = ExportCache.getInstance(context);
+            cache.setMaxBytes(exportOptions.cacheSize);
+        } else {
+            cache = null;
+        }
+    }
+
+    public ExportCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Lets an export in progress be stopped. It is checked between the stages of an export,
+     * and a decode under way is asked to stop early.
+     */
+    public static class Cancellation {
+        private volatile boolean cancelled;
+        private BitmapFactory.Options decoding;
+
+        public void cancel() {
+            BitmapFactory.Options options;
+            synchronized (this) {
+                cancelled = true;
+                options = decoding;
+            }
+            if (options != null) {
+                options.requestCancelDecode();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void throwIfCancelled() throws CancelledException {
+            if (cancelled) {
+                throw new CancelledException();
+            }
+        }
+
+        private synchronized void setDecoding(BitmapFactory.Options options) {
+            decoding = options;
+            if (cancelled && options != null) {
+                options.requestCancelDecode();
+            }
+        }
+    }
+
+    public static class CancelledException extends IOException {
+        public CancelledException() {
+            super("The export was cancelled.");
+        }
+    }
+
+    /**
+     * Exports one image. If the export fails or is cancelled, whatever it had written for the
+     * image is deleted.
+     */
+    public Result export(SelectedImage imageInfo, OutputStore.Session session, Cancellation cancellation) throws IOException {
+        List<File> written = new ArrayList<File>();
+        boolean done = false;
+        try {
+            Result result = export(imageInfo, session, cancellation, written);
+            done = true;
+            return result;
+        } finally {
+            if (!done) {
+                for (File file : written) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private Result export(SelectedImage imageInfo, OutputStore.Session session, Cancellation cancellation,
+            List<File> written) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        cancellation.throwIfCancelled();
+        File source = new File(imageInfo.path);
+        int rotate = imageInfo.rotation;
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inSampleSize = 1;
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getAbsolutePath(), bounds);
+        cancellation.throwIfCancelled();
+        final int width = bounds.outWidth;
+        final int height = bounds.outHeight;
+
+        String sourceFormat = getSourceFormat(source.getName());
+        float scale = calculateScale(width, height, exportOptions);
+        String format = getOutputFormat(source.getName(), exportOptions);
+        boolean transcode = !ExportOptions.FORMAT_ORIGINAL.equals(exportOptions.format) && !format.equals(sourceFormat);
+        boolean tooLarge = exportOptions.maxBytes > 0 && source.length() > exportOptions.maxBytes;
+        boolean encode = scale < 1 || transcode || tooLarge;
+        String fileName = getOutputFileName(source.getName(), encode ? format : sourceFormat);
+        String resultFormat = encode ? format : sourceFormat;
+
+        Result result = null;
+        String cacheKey = null;
+        if (cache != null && (encode || !exportOptions.passthrough)) {
+            cacheKey = ExportCache.key(imageInfo, exportOptions, format);
+            result = getCachedResult(imageInfo, cacheKey, fileName, resultFormat, false, session, written);
+        }
+
+        // Renditions already in the cache need no pixels either.
+        List<ExportOptions> renditions = new ArrayList<ExportOptions>();
+        Map<ExportOptions, Result> renditionResults = new HashMap<ExportOptions, Result>();
+        for (ExportOptions rendition : exportOptions.renditions) {
+            String renditionFormat = getOutputFormat(source.getName(), rendition);
+            Result cached = null;
+            if (cache != null) {
+                cached = getCachedResult(imageInfo, ExportCache.key(imageInfo, rendition, renditionFormat),
+                        getOutputFileName(source.getName(), renditionFormat), renditionFormat, true, session, written);
+            }
+            if (cached != null) {
+                renditionResults.put(rendition, cached);
+            } else {
+                renditions.add(rendition);
+            }
+        }
+
+        // Everything that needs pixels is derived from a single decode, at the size of the
+        // largest of those outputs.
+        float decodeScale = 0;
+        if (result == null && encode) {
+            decodeScale = scale;
+        }
+        for (ExportOptions rendition : renditions) {
+            decodeScale = Math.max(decodeScale, calculateScale(width, height, rendition));
+        }
+        Bitmap decoded = null;
+        if (decodeScale > 0) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = calculateInSampleSize(bounds, (int)(width * decodeScale), (int)(height * decodeScale));
+            try {
+                decoded = this.decodeBitmap(source, options, cancellation);
+            } catch (OutOfMemoryError e) {
+                options.inSampleSize = calculateNextSampleSize(options.inSampleSize);
+                try {
+                    decoded = this.decodeBitmap(source, options, cancellation);
+                } catch (OutOfMemoryError e2) {
+                    throw new IOException("Unable to load image into memory.");
+                }
+            }
+        }
+        cancellation.throwIfCancelled();
+
+        Output output = null;
+        File file = source;
+        if (result != null) {
+            // Served from the cache.
+        } else if (encode) {
+            Bitmap bmp = decoded;
+            int finalWidth = (int)(width * scale);
+            if (scale < 1 && finalWidth < bmp.getWidth()) {
+                bmp = this.getResizedBitmap(bmp, (float) finalWidth / bmp.getWidth());
+            }
+            file = session.createFile(fileName);
+            written.add(file);
+            output = this.storeOutput(bmp, file, format, exportOptions, rotate, cancellation);
+            output.limitMet = fitsLimit(file, exportOptions);
+        } else if (exportOptions.passthrough) {
+            // Nothing to do to the pixels: hand back the original file, no copy is made.
+            result = new Result(imageInfo, source, true, false, sourceFormat, -1, width, height, rotate == 0,
+                    exportOptions.hash ? hashFile(source) : null);
+        } else {
+            // Don't load the bitmap if we don't want to resize the image, simply copy the file.
+            file = session.createFile(fileName);
+            written.add(file);
+            MessageDigest digest = newDigest();
+            this.copyFile(source, file, digest);
+            String sha256 = toHex(digest);
+            // The copy keeps the compressed data untouched, make sure its EXIF header
+            // agrees with the MediaStore orientation so viewers rotate it losslessly.
+            if (rotate != 0 && ExportOptions.FORMAT_JPEG.equals(sourceFormat)) {
+                boolean rewritten;
+                try {
+                    rewritten = this.writeExifOrientation(file, rotate);
+                } catch (IOException e) {
+                    // Left untagged, but the header may have been partly written.
+                    rewritten = true;
+                }
+                if (rewritten && digest != null) {
+                    // The header was rewritten after the copy. Most camera JPEGs already carry
+                    // the tag and keep the hash of the copy.
+                    sha256 = hashFile(file);
+                }
+            }
+            output = new Output(-1, width, height, rotate == 0, sha256);
+        }
+        if (result == null) {
+            result = putResult(imageInfo, cacheKey, file, resultFormat, output);
+        }
+
+        // Smaller renditions come from the previous, larger one: successive downscaling
+        // instead of going back to the decoded image each time.
+        Collections.sort(renditions, new Comparator<ExportOptions>() {
+            @Override
+            public int compare(ExportOptions lhs, ExportOptions rhs) {
+                return Float.compare(calculateScale(width, height, rhs), calculateScale(width, height, lhs));
+            }
+        });
+        Bitmap current = decoded;
+        for (ExportOptions rendition : renditions) {
+            cancellation.throwIfCancelled();
+            float renditionScale = calculateScale(width, height, rendition);
+            int targetWidth = Math.min(current.getWidth(), Math.max(1, (int)(width * renditionScale)));
+            int targetHeight = Math.min(current.getHeight(), Math.max(1, (int)(height * renditionScale)));
+            current = downscale(current, targetWidth, targetHeight, current != decoded);
+            String renditionFormat = getOutputFormat(source.getName(), rendition);
+            File renditionFile = session.createFile(getRenditionFileName(
+                    getOutputFileName(source.getName(), renditionFormat), targetWidth, targetHeight));
+            written.add(renditionFile);
+            Output renditionOutput = this.storeOutput(current, renditionFile, renditionFormat, rendition, rotate, cancellation);
+            renditionOutput.limitMet = fitsLimit(renditionFile, rendition);
+            renditionResults.put(rendition, putResult(imageInfo, cache != null ? ExportCache.key(imageInfo, rendition, renditionFormat) : null,
+                    renditionFile, renditionFormat, renditionOutput));
+        }
+        for (ExportOptions rendition : exportOptions.renditions) {
+            result.renditions.add(renditionResults.get(rendition));
+        }
+        result.processingTime = SystemClock.elapsedRealtime() - start;
+        return result;
+    }
+
+    /**
+     * Looks the output up in the cache. On a hit the session gets a file of its own for it.
+     *
+     * @param rendition The file is named after the size of the output, like a rendition.
+     */
+    private Result getCachedResult(SelectedImage imageInfo, String cacheKey, String fileName, String format,
+            boolean rendition, OutputStore.Session session, List<File> written) throws IOException {
+        JSONObject metadata = null;
+        String json = cache.getMetadata(cacheKey);
+        if (json != null) {
+            try {
+                metadata = new JSONObject(json);
+            } catch (JSONException e) {
+                // Just not reported.
+            }
+        }
+        if (metadata == null) {
+            metadata = new JSONObject();
+        }
+        int width = metadata.optInt("width", 0);
+        int height = metadata.optInt("height", 0);
+        int dot = fileName.lastIndexOf('.');
+        File cachedFile = session.createFile(rendition && width > 0 && height > 0
+                ? getRenditionFileName(fileName, width, height) : fileName);
+        written.add(cachedFile);
+        if (!cache.get(cacheKey, dot >= 0 ? fileName.substring(dot) : "", cachedFile)) {
+            cachedFile.delete();
+            return null;
+        }
+        String sha256 = metadata.has("sha256") ? metadata.optString("sha256") : null;
+        if (sha256 == null && exportOptions.hash) {
+            // Entry made without hashing, this one read can't be avoided.
+            try {
+                sha256 = hashFile(cachedFile);
+            } catch (IOException e) {
+                cachedFile.delete();
+                return null;
+            }
+        }
+        Result result = new Result(imageInfo, cachedFile, false, true, format, metadata.optInt("quality", -1),
+                width, height, metadata.optBoolean("rotated", false), sha256);
+        result.limitMet = metadata.optBoolean("limitMet", true);
+        return result;
+    }
+
+    /**
+     * Builds the result of a file just written, keeping it in the cache too if there is one.
+     */
+    private Result putResult(SelectedImage imageInfo, String cacheKey, File file, String format, Output output) {
+        Result result = new Result(imageInfo, file, false, false, format, output.quality, output.width, output.height,
+                output.rotated, output.sha256);
+        result.limitMet = output.limitMet;
+        if (cacheKey == null) {
+            return result;
+        }
+        String metadata = null;
+        try {
+            metadata = new JSONObject()
+                    .put("quality", output.quality)
+                    .put("width", output.width)
+                    .put("height", output.height)
+                    .put("rotated", output.rotated)
+                    .putOpt("sha256", output.sha256)
+                    .put("limitMet", output.limitMet)
+                    .toString();
+        } catch (JSONException e) {
+            // Nothing worth keeping then.
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        cache.put(cacheKey, dot >= 0 ? name.substring(dot) : "", file, metadata);
+        return result;
+    }
+
+    /**
+     * Rotates and encodes one output. A JPEG output can carry the rotation in its EXIF header
+     * instead of having its pixels rotated into a second bitmap.
+     *
+     * @return What was written.
+     */
+    private Output storeOutput(Bitmap bmp, File file, String format, ExportOptions spec, int rotate,
+            Cancellation cancellation) throws IOException {
+        boolean tagRotation = exportOptions.losslessRotation && rotate != 0 && ExportOptions.FORMAT_JPEG.equals(format);
+        if (rotate != 0 && !tagRotation) {
+            return storeRotated(bmp, file, format, spec, rotate, cancellation);
+        }
+        MessageDigest digest = newDigest();
+        int quality = this.storeImage(bmp, file, format, spec, digest, cancellation);
+        if (tagRotation) {
+            boolean rewritten;
+            try {
+                rewritten = this.writeExifOrientation(file, rotate);
+            } catch (IOException e) {
+                // Couldn't tag the output, fall back to rotating the pixels.
+                return storeRotated(bmp, file, format, spec, rotate, cancellation);
+            }
+            String sha256 = toHex(digest);
+            if (rewritten && digest != null) {
+                // The header was rewritten after the encoded bytes went through the digest.
+                sha256 = hashFile(file);
+            }
+            return new Output(quality, bmp.getWidth(), bmp.getHeight(), false, sha256);
+        }
+        return new Output(quality, bmp.getWidth(), bmp.getHeight(), rotate == 0, toHex(digest));
+    }
+
+    private Output storeRotated(Bitmap bmp, File file, String format, ExportOptions spec, int rotate,
+            Cancellation cancellation) throws IOException {
+        Bitmap rotated = this.getRotatedBitmap(bmp, rotate);
+        MessageDigest digest = newDigest();
+        int quality = this.storeImage(rotated, file, format, spec, digest, cancellation);
+        return new Output(quality, rotated.getWidth(), rotated.getHeight(), true, toHex(digest));
+    }
+
+    /**
+     * Keeps only the first of the results that have the same content, the others are
+     * discarded and listed as its duplicates. Results without a hash are all kept.
+     */
+    public ArrayList<Result> collapseDuplicates(List<Result> results) {
+        ArrayList<Result> collapsed = new ArrayList<Result>();
+        Map<String, Result> byHash = new HashMap<String, Result>();
+        for (Result result : results) {
+            Result first = result.sha256 != null ? byHash.get(result.sha256) : null;
+            if (first == null) {
+                if (result.sha256 != null) {
+                    byHash.put(result.sha256, result);
+                }
+                collapsed.add(result);
+            } else {
+                first.duplicates.add(result.image.id);
+                discard(result);
+            }
+        }
+        return collapsed;
+    }
+
+    /**
+     * @return A digest to hash an output with as it's written, null unless hashes were asked for.
+     */
+    private MessageDigest newDigest() {
+        if (!exportOptions.hash) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(MessageDigest digest) {
+        return digest != null ? ExportCache.toHex(digest.digest()) : null;
+    }
+
+    /**
+     * Hashes a file that wasn't written by us, or was modified after being written.
+     */
+    private String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest);
+    }
+
+    /**
+     * What was written for one output, kept in memory so the result can be described
+     * without reading the file back.
+     */
+    private static class Output {
+        final int quality;
+        final int width;
+        final int height;
+        final boolean rotated;
+
+        final String sha256;
+        boolean limitMet = true;
+
+        Output(int quality, int width, int height, boolean rotated, String sha256) {
+            this.quality = quality;
+            this.width = width;
+            this.height = height;
+            this.rotated = rotated;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * Deletes the files of a result that won't be handed back after all. Originals are kept,
+     * cache entries are files of their own.
+     */
+    public void discard(Result result) {
+        if (result == null) {
+            return;
+        }
+        if (!result.original) {
+            result.file.delete();
+        }
+        for (Result rendition : result.renditions) {
+            discard(rendition);
+        }
+    }
+
+    /**
+     * @param digest Digest the copied bytes go through on their way, or null.
+     */
+    private void copyFile(File sourceFile, File destFile, MessageDigest digest) throws IOException {
+        File partFile = getPartFile(destFile);
+        boolean done = false;
+        try {
+            if (!sourceFile.exists()) {
+                LOG.d(LOG_TAG, "Source file does not exist!");
+                throw new IOException("The image file could not be opened.");
+            }
+
+            LOG.d(LOG_TAG, "Source file exists");
+            FileChannel source = null;
+            FileChannel destination = null;
+            source = new FileInputStream(sourceFile).getChannel();
+            destination = new FileOutputStream(partFile).getChannel();
+            if (destination != null && source != null) {
+                LOG.d(LOG_TAG, "Copying file...");
+                if (digest == null) {
+                    destination.transferFrom(source, 0, source.size());
+                } else {
+                    // Hashed on the way through, the bytes are only read once.
+                    ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                    while (source.read(buffer) >= 0) {
+                        buffer.flip();
+                        digest.update(buffer.array(), 0, buffer.limit());
+                        while (buffer.hasRemaining()) {
+                            destination.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+                LOG.d(LOG_TAG, "File copied");
+            }
+            if (source != null) {
+                LOG.d(LOG_TAG, "Closing source");
+                source.close();
+            }
+            if (destination != null) {
+                LOG.d(LOG_TAG, "Closing destination");
+                destination.close();
+            }
+            commitPartFile(partFile, destFile);
+            done = true;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error copying the file: " + e.toString());
+            throw e;
+        } finally {
+            if (!done) {
+                partFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Outputs are written next to their final name and only renamed once complete, a file
+     * under its final name is never partial.
+     */
+    private static File getPartFile(File file) {
+        return new File(file.getPath() + ".part");
+    }
+
+    private static void commitPartFile(File partFile, File file) throws IOException {
+        if (!partFile.renameTo(file)) {
+            throw new IOException("Unable to write " + file.getName());
+        }
+    }
+
+    private Bitmap decodeBitmap(File file, BitmapFactory.Options options, Cancellation cancellation)
+            throws IOException, OutOfMemoryError {
+        cancellation.setDecoding(options);
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } finally {
+            cancellation.setDecoding(null);
+        }
+        if (bmp == null) {
+            // A cancelled decode gives nothing either.
+            cancellation.throwIfCancelled();
+            throw new IOException("The image file could not be opened.");
+        }
+        return bmp;
+    }
+
+    /**
+     * Scales down in steps of at most a half, each one filtered, which keeps the quality of
+     * a large downscale without sampling a full size image for every output pixel.
+     *
+     * @param recycleSource Whether the given bitmap can be recycled once scaled.
+     */
+    private static Bitmap downscale(Bitmap bmp, int targetWidth, int targetHeight, boolean recycleSource) {
+        Bitmap current = bmp;
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            Bitmap half = Bitmap.createScaledBitmap(current, current.getWidth() / 2, current.getHeight() / 2, true);
+            if (current != bmp || recycleSource) {
+                current.recycle();
+            }
+            current = half;
+        }
+        if (current.getWidth() != targetWidth || current.getHeight() != targetHeight) {
+            Bitmap scaled = Bitmap.createScaledBitmap(current, targetWidth, targetHeight, true);
+            if (scaled != current && (current != bmp || recycleSource)) {
+                current.recycle();
+            }
+            current = scaled;
+        }
+        return current;
+    }
+
+    private Bitmap getRotatedBitmap(Bitmap bmp, int rotate) {
+        Matrix matrix = new Matrix();
+        matrix.setRotate(rotate);
+        return Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+    }
+
+    /**
+     * Records the rotation in the EXIF orientation tag of a JPEG file. Only the header is
+     * rewritten, the compressed image data is left as is.
+     *
+     * @return true if the file was rewritten, false if it already had the right tag.
+     * @throws IOException if the file could not be tagged.
+     */
+    private boolean writeExifOrientation(File file, int rotate) throws IOException {
+        int orientation;
+        switch (rotate) {
+            case 90:
+                orientation = ExifInterface.ORIENTATION_ROTATE_90;
+                break;
+            case 180:
+                orientation = ExifInterface.ORIENTATION_ROTATE_180;
+                break;
+            case 270:
+                orientation = ExifInterface.ORIENTATION_ROTATE_270;
+                break;
+            default:
+                throw new IOException("No orientation tag for a rotation of " + rotate + " degrees.");
+        }
+        try {
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            if (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL) == orientation) {
+                return false;
+            }
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(orientation));
+            exif.saveAttributes();
+            return true;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unable to write the orientation tag: " + e.toString());
+            throw e;
+        }
+    }
+
+    /*
+    * The following functions are originally from
+    * https://github.com/raananw/PhoneGap-Image-Resizer
+    *
+    * They have been modified by Andrew Stephan for Sync OnSet
+    *
+    * The software is open source, MIT Licensed.
+    * Copyright (C) 2012, webXells GmbH All Rights Reserved.
+    */
+
+    /**
+     * Encodes the bitmap into the file. With a maxBytes limit, a lossy encoding that doesn't
+     * fit is retried at lower qualities, binary searching the highest one that fits. Attempts
+     * are encoded in memory, in a buffer reused between attempts and images.
+     *
+     * @return The quality used.
+     */
+    private int storeImage(Bitmap bmp, File file, String format, ExportOptions spec, MessageDigest digest,
+            Cancellation cancellation) throws IOException {
+        Bitmap.CompressFormat compressFormat = getCompressFormat(format);
+        boolean lossless = ExportOptions.FORMAT_PNG.equals(format) || ExportOptions.FORMAT_WEBP_LOSSLESS.equals(format);
+        int quality = lossless ? 100 : spec.quality;
+        long maxBytes = spec.maxBytes;
+
+        EncodeBuffer buffer = encodeBuffer.get();
+        buffer.reset();
+        bmp.compress(compressFormat, quality, buffer);
+        if (maxBytes > 0 && buffer.size() > maxBytes && !lossless) {
+            int low = 0;
+            int high = quality - 1;
+            int best = -1;
+            int last = quality;
+            while (low <= high) {
+                cancellation.throwIfCancelled();
+                int mid = (low + high) >>> 1;
+                buffer.reset();
+                bmp.compress(compressFormat, mid, buffer);
+                last = mid;
+                if (buffer.size() <= maxBytes) {
+                    best = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            // Nothing fits: the lowest quality is as close as it gets.
+            quality = best >= 0 ? best : 0;
+            if (last != quality) {
+                buffer.reset();
+                bmp.compress(compressFormat, quality, buffer);
+            }
+        }
+
+        cancellation.throwIfCancelled();
+        File partFile = getPartFile(file);
+        OutputStream outStream = new FileOutputStream(partFile);
+        if (digest != null) {
+            outStream = new DigestOutputStream(outStream, digest);
+        }
+        boolean done = false;
+        try {
+            buffer.writeTo(outStream);
+            outStream.flush();
+            outStream.close();
+            commitPartFile(partFile, file);
+            done = true;
+        } finally {
+            if (!done) {
+                outStream.close();
+                partFile.delete();
+            }
+            buffer.release();
+        }
+        return quality;
+    }
+
+    /**
+     * @return false if the file is over the maxBytes of its spec.
+     */
+    private static boolean fitsLimit(File file, ExportOptions spec) {
+        return spec.maxBytes <= 0 || file.length() <= spec.maxBytes;
+    }
+
+    private static Bitmap.CompressFormat getCompressFormat(String format) {
+        if (ExportOptions.FORMAT_PNG.equals(format)) {
+            return Bitmap.CompressFormat.PNG;
+        } else if (ExportOptions.FORMAT_WEBP.equals(format)) {
+            // WEBP at quality 100 turns lossless from Android 10, the explicit constant came with 11.
+            return Build.VERSION.SDK_INT >= 30 ? Bitmap.CompressFormat.valueOf("WEBP_LOSSY") : Bitmap.CompressFormat.WEBP;
+        } else if (ExportOptions.FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return Build.VERSION.SDK_INT >= 30 ? Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS") : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    /**
+     * In memory encoding buffer, kept per thread so its storage is reused from one attempt and
+     * one image to the next. Unusually large buffers are not kept.
+     */
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        private static final int MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+        public EncodeBuffer() {
+            super(256 * 1024);
+        }
+
+        public void release() {
+            if (buf.length > MAX_RETAINED_BYTES) {
+                encodeBuffer.remove();
+            }
+        }
+    }
+
+    private static final ThreadLocal<EncodeBuffer> encodeBuffer = new ThreadLocal<EncodeBuffer>() {
+        @Override
+        protected EncodeBuffer initialValue() {
+            return new EncodeBuffer();
+        }
+    };
+
+    private Bitmap getResizedBitmap(Bitmap bm, float factor) {
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+        // create a matrix for the manipulation
+        Matrix matrix = new Matrix();
+        // resize the bit map
+        matrix.postScale(factor, factor);
+        // recreate the new Bitmap
+        Bitmap resizedBitmap = Bitmap.createBitmap(bm, 0, 0, width, height, matrix, false);
+        return resizedBitmap;
+    }
+
+    private static String getMimeType(String format) {
+        if (ExportOptions.FORMAT_PNG.equals(format)) {
+            return "image/png";
+        } else if (ExportOptions.FORMAT_JPEG.equals(format)) {
+            return "image/jpeg";
+        } else if (ExportOptions.FORMAT_WEBP.equals(format) || ExportOptions.FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return "image/webp";
+        }
+        return "application/octet-stream";
+    }
+
+    private static boolean isPng(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        return index >= 0 && fileName.substring(index).compareToIgnoreCase(".png") == 0;
+    }
+
+    /**
+     * @return The format of the source file from its extension, null if it isn't one we write.
+     */
+    private static String getSourceFormat(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        String ext = index >= 0 ? fileName.substring(index + 1).toLowerCase() : "";
+        if (ext.equals("png")) {
+            return ExportOptions.FORMAT_PNG;
+        } else if (ext.equals("jpg") || ext.equals("jpeg")) {
+            return ExportOptions.FORMAT_JPEG;
+        } else if (ext.equals("webp")) {
+            return ExportOptions.FORMAT_WEBP;
+        }
+        return null;
+    }
+
+    private static String getOutputFormat(String fileName, ExportOptions spec) {
+        if (ExportOptions.FORMAT_ORIGINAL.equals(spec.format)) {
+            return isPng(fileName) ? ExportOptions.FORMAT_PNG : ExportOptions.FORMAT_JPEG;
+        }
+        return spec.format;
+    }
+
+    /**
+     * @return The file name with the size of the rendition before its extension.
+     */
+    private static String getRenditionFileName(String fileName, int width, int height) {
+        int index = fileName.lastIndexOf('.');
+        String name = index >= 0 ? fileName.substring(0, index) : fileName;
+        String ext = index >= 0 ? fileName.substring(index) : "";
+        return name + "-" + width + "x" + height + ext;
+    }
+
+    /**
+     * @return The source file name, with the extension of the output format when it changes.
+     */
+    private static String getOutputFileName(String fileName, String format) {
+        if (format == null || format.equals(getSourceFormat(fileName))) {
+            return fileName;
+        }
+        int index = fileName.lastIndexOf('.');
+        String name = index >= 0 ? fileName.substring(0, index) : fileName;
+        if (ExportOptions.FORMAT_PNG.equals(format)) {
+            return name + ".png";
+        } else if (ExportOptions.FORMAT_JPEG.equals(format)) {
+            return name + ".jpg";
+        }
+        return name + ".webp";
+    }
+
+    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        // Raw height and width of image
+        final int height = options.outHeight;
+        final int width = options.outWidth;
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
+            // height and width larger than the requested height and width.
+            while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+
+    private int calculateNextSampleSize(int sampleSize) {
+        double logBaseTwo = (int)(Math.log(sampleSize) / Math.log(2));
+        return (int)Math.pow(logBaseTwo + 1, 2);
+    }
+
+    private static float calculateScale(int width, int height, ExportOptions spec) {
+        int desiredWidth = spec.width;
+        int desiredHeight = spec.height;
+        float widthScale = 1.0f;
+        float heightScale = 1.0f;
+        float scale = 1.0f;
+        if (desiredWidth > 0 || desiredHeight > 0) {
+            if (desiredHeight == 0 && desiredWidth < width) {
+                scale = (float)desiredWidth/width;
+            } else if (desiredWidth == 0 && desiredHeight < height) {
+                scale = (float)desiredHeight/height;
+            } else {
+                if (desiredWidth > 0 && desiredWidth < width) {
+                    widthScale = (float)desiredWidth/width;
+                }
+                if (desiredHeight > 0 && desiredHeight < height) {
+                    heightScale = (float)desiredHeight/height;
+                }
+                if (widthScale < heightScale) {
+                    scale = widthScale;
+                } else {
+                    scale = heightScale;
+                }
+            }
+        }
+
+        return scale;
+    }
+}
@@ -22,12 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -38,14 +33,15 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.graphics.Matrix;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
@@ -72,28 +68,45 @@ public class ImageFetcher {
     private int colWidth;
     private long origId;
     private ExecutorService executor;
-    private static Random random = new Random();
-    private static int[] defaultColors = new int[]{
-            Color.rgb(230, 0, 126),
-            Color.rgb(150, 193, 31),
-            Color.rgb(0, 159, 227)
-    };
+    // Shown while loading the images whose color isn't known yet.
+    private static final int PLACEHOLDER_COLOR = Color.rgb(224, 224, 224);
+
+    private Runnable onFirstImage;
 
     public ImageFetcher() {
         executor = Executors.newCachedThreadPool();
     }
 
-    public void fetch(Integer id, ImageView imageView, int colWidth, int rotate) {
-        resetPurgeTimer();
+    /**
+     * @param onFirstImage Run once, when the first image is shown.
+     */
+    public void setOnFirstImage(Runnable onFirstImage) {
+        this.onFirstImage = onFirstImage;
+    }
+
+    private void firstImageShown() {
+        if (onFirstImage != null) {
+            Runnable r = onFirstImage;
+            onFirstImage = null;
+            r.run();
+        }
+    }
+
+    /**
+     * @param level The level of detail wanted, see getLevelSize. A finer cached thumbnail is
+     *              shown instead, and a coarser one while this one loads.
+     */
+    public void fetch(Integer id, ImageView imageView, int colWidth, int rotate, int level) {
         this.colWidth = colWidth;
         this.origId = id;
-        Bitmap bitmap = getBitmapFromCache(id);
+        Bitmap bitmap = getBitmapFromCache(id, level);
 
         if (bitmap == null) {
-            forceDownload(id, imageView, rotate);
+            forceDownload(id, imageView, rotate, level);
         } else {
-            cancelPotentialDownload(id, imageView);
+            cancelPotentialDownload(id, level, imageView);
             imageView.setImageBitmap(bitmap);
+            firstImageShown();
         }
     }
 
@@ -101,15 +114,17 @@ public class ImageFetcher {
      * Same as download but the image is always downloaded and the cache is not
      * used. Kept private at the moment as its interest is not clear.
      */
-    private void forceDownload(Integer position, ImageView imageView, int rotate) {
+    private void forceDownload(Integer position, ImageView imageView, int rotate, int level) {
         if (position == null) {
             imageView.setImageDrawable(null);
             return;
         }
 
-        if (cancelPotentialDownload(position, imageView)) {
-            BitmapFetcherTask task = new BitmapFetcherTask(imageView.getContext(), imageView, rotate);
-            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(imageView.getContext(), task, origId);
+        if (cancelPotentialDownload(position, level, imageView)) {
+            BitmapFetcherTask task = new BitmapFetcherTask(imageView.getContext(), imageView, rotate, level);
+            int color = PreviewIndex.getInstance(imageView.getContext()).getColor(position);
+            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(imageView.getContext(), task, origId,
+                    color != 0 ? color : PLACEHOLDER_COLOR, getCoarserFromCache(position, level));
             imageView.setImageDrawable(downloadedDrawable);
             imageView.setMinimumHeight(colWidth);
 
@@ -129,16 +144,16 @@ public class ImageFetcher {
     /**
      * Returns true if the current download has been canceled or if there was no
      * download in progress on this image view. Returns false if the download in
-     * progress deals with the same url. The download is not stopped in that
+     * progress deals with the same url and level. The download is not stopped in that
      * case.
      */
-    private static boolean cancelPotentialDownload(Integer position, ImageView imageView) {
+    private static boolean cancelPotentialDownload(Integer position, int level, ImageView imageView) {
         BitmapFetcherTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
         long origId = getOrigId(imageView);
 
         if (bitmapDownloaderTask != null) {
             Integer bitmapPosition = bitmapDownloaderTask.position;
-            if ((bitmapPosition == null) || (!bitmapPosition.equals(position))) {
+            if ((bitmapPosition == null) || (!bitmapPosition.equals(position)) || bitmapDownloaderTask.level != level) {
                 // Log.d("DAVID", "Canceling...");
                 MediaStore.Images.Thumbnails.cancelThumbnailRequest(imageView.getContext().getContentResolver(),
                         origId, 12345);
@@ -185,11 +200,17 @@ public class ImageFetcher {
         private final WeakReference<ImageView> imageViewReference;
         private final Context mContext;
         private final int rotate;
+        private final int level;
+        // Set when the thumbnail file was made rather than read, for ThumbnailWriter.
+        private String filePath;
+        private File thumbnailFile;
+        private Bitmap fileBitmap;
 
-        public BitmapFetcherTask(Context context, ImageView imageView, int rotate) {
+        public BitmapFetcherTask(Context context, ImageView imageView, int rotate, int level) {
             imageViewReference = new WeakReference<ImageView>(imageView);
             mContext = context;
             this.rotate = rotate;
+            this.level = level;
         }
 
         /**
@@ -212,39 +233,14 @@ public class ImageFetcher {
                 // as it looks like generating those thumbnails is really costly and creates huge files.
                 return this.getThumbnail();
             } catch (OutOfMemoryError error) {
-                clearCache();
+                // Should be rare, decodeThumbnail makes room first. Keeps what's on screen.
+                ThumbnailCache.getInstance().trimToVisible();
                 return null;
             }
 
         }
 
-        private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-            // Raw height and width of image
-            final int height = options.outHeight;
-            final int width = options.outWidth;
-            int inSampleSize = 1;
-
-            if (height > reqHeight || width > reqWidth) {
-                final int halfHeight = height / 2;
-                final int halfWidth = width / 2;
-
-                // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-                // height and width larger than the requested height and width.
-                while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
-                    inSampleSize *= 2;
-                }
-            }
-
-            return inSampleSize;
-        }
-
-
         private Bitmap getThumbnail() {
-            final String pngExtension = "png";
-            final int quality = 75;
-            final int thumbnailSize = 100;
-            final String thumbnailsFolderName = ".thumbs";
-
             // Avoids using getThumbnail, as it looks like it ends up creating huge files that can take quite some
             // time to create, if the thumbnails are not yet generated.
             Uri uri = Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, Integer.toString(position));
@@ -258,6 +254,15 @@ public class ImageFetcher {
             try {
                 ContentResolver contentResolver = mContext.getContentResolver();
 
+                if (level > LEVEL_MEDIUM) {
+                    // Finer than the thumbnail files, made from the image and only kept in memory.
+                    BitmapFactory.Options bounds = decodeBounds(contentResolver, uri);
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    return decodeThumbnail(contentResolver, uri, bounds, getLevelSize(level), rotate);
+                }
+
                 // Gets the name of the file (useful to be able to create or look for the thumbnail).
                 // NOTE: the following doesn't always work. Uses method from FileHelper.
                 //String filePath = null;
@@ -277,40 +282,26 @@ public class ImageFetcher {
                 }
 
                 // Gets the name of the thumbnail to retrieve or create.
-                File currentFile = new File(filePath);
-                File newFileFolder = new File(currentFile.getParent(), thumbnailsFolderName);
-
-                // Creates the folder if necessary. NOTE that we may not be able to write on that
-                // location. So we 1st try to create our folder, if we can't, we try to create
-                // a folder in the public directory.
-                newFileFolder.mkdirs();
-                if (!newFileFolder.isDirectory()) {
-                    newFileFolder = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), thumbnailsFolderName);
-                    newFileFolder.mkdirs();
-                    if (!newFileFolder.isDirectory()) {
-                        return null;
-                    }
-
-                    // We create a sub folder, in case several pictures in different folders have the same name.
-                    newFileFolder = new File(newFileFolder, currentFile.getParent());
-                    newFileFolder.mkdirs();
+                File newFile = getThumbnailFile(filePath);
+                if (newFile == null) {
+                    return null;
                 }
 
-                File newFile = new File(newFileFolder, currentFile.getName());
-
                 if (isCancelled()) {
                     return null;
                 }
 
                 if (newFile.exists()) {
-                    // The thumbnail already exists, just read its.
+                    // The thumbnail already exists, just read its, sampled down for the coarser levels.
                     BitmapFactory.Options options = new BitmapFactory.Options();
                     options.inPurgeable = true;
+                    options.inSampleSize = THUMBNAIL_SIZE / getLevelSize(level);
                     Bitmap bitmap = BitmapFactory.decodeFile(newFile.getAbsolutePath(), options);
 
                     // If the read bitmap is not null, returns it,
                     // else we delete the file and recreate the thumbnail.
                     if (bitmap != null) {
+                        PreviewIndex.getInstance(mContext).put(position, bitmap);
                         return bitmap;
                     } else {
                         newFile.delete();
@@ -318,35 +309,12 @@ public class ImageFetcher {
                 }
 
                 // The thumbnail doesn't exist yet, we'll create it.
-
-                // Gets stream from the image URI.
-                InputStream stream = contentResolver.openInputStream(uri);
-                // stream.mark(Integer.MAX_VALUE); Can't use it, we'll have to recreate the stream.
-
-                // Gets image size.
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(stream, null, options);
-
-                // Reopens the stream (can't use stream.reset) for when we'll really read the content).
-                stream.close();
+                BitmapFactory.Options bounds = decodeBounds(contentResolver, uri);
                 if (isCancelled()) {
                     return null;
                 }
-                stream = contentResolver.openInputStream(uri);
-
-                // Computes sample size.
-                int inSampleSize = calculateInSampleSize(options, thumbnailSize, thumbnailSize);
-
-                // As we don't care about an exact size, we keep what we get.
-                options = new BitmapFactory.Options();
-                options.inSampleSize = inSampleSize;
-                options.inPurgeable = true;
-                Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
-
-                // Don't forget to close the stream.
-                stream.close();
 
+                Bitmap bitmap = decodeThumbnail(contentResolver, uri, bounds, THUMBNAIL_SIZE, rotate);
                 if (isCancelled()) {
                     return null;
                 }
@@ -356,27 +324,18 @@ public class ImageFetcher {
                     return null;
                 }
 
-                if (rotate != 0) {
-                    Matrix matrix = new Matrix();
-                    matrix.setRotate(rotate);
-                    bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-                }
+                PreviewIndex.getInstance(mContext).put(position, bitmap);
 
-                if (isCancelled()) {
-                    return null;
-                }
+                // Written once it's cached, see onPostExecute.
+                this.filePath = filePath;
+                this.thumbnailFile = newFile;
+                this.fileBitmap = bitmap;
 
-                int dot = filePath.lastIndexOf(".");
-                String fileExtension = filePath.substring(dot + 1);
-                OutputStream outStream = new FileOutputStream(newFile);
-                if (fileExtension.equals(pngExtension)) {
-                    bitmap.compress(Bitmap.CompressFormat.PNG, quality, outStream);
-                } else {
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, quality, outStream);
+                if (level < LEVEL_MEDIUM) {
+                    int sampleSize = THUMBNAIL_SIZE / getLevelSize(level);
+                    return Bitmap.createScaledBitmap(bitmap, Math.max(1, bitmap.getWidth() / sampleSize),
+                            Math.max(1, bitmap.getHeight() / sampleSize), true);
                 }
-                outStream.flush();
-                outStream.close();
-
                 return bitmap;
             } catch (FileNotFoundException fnfe) {
                 Log.e(LogTag, fnfe.getMessage());
@@ -408,12 +367,18 @@ public class ImageFetcher {
             if (isCancelled()) {
                 bitmap = null;
             }
-            addBitmapToCache(position, bitmap);
+            addBitmapToCache(position, level, bitmap);
+            if (bitmap != null && thumbnailFile != null) {
+                ThumbnailWriter.getInstance().write(position, level, fileBitmap, filePath, thumbnailFile);
+            }
             if (imageViewReference != null) {
                 ImageView imageView = imageViewReference.get();
                 BitmapFetcherTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
                 if (this == bitmapDownloaderTask) {
                     imageView.setImageBitmap(bitmap);
+                    if (bitmap != null) {
+                        firstImageShown();
+                    }
                     Animation anim = AnimationUtils.loadAnimation(imageView.getContext(), android.R.anim.fade_in);
                     imageView.setAnimation(anim);
                     anim.start();
@@ -424,6 +389,174 @@ public class ImageFetcher {
         }
     }
 
+    /*
+     * Thumbnail files and decoding, shared with the thumbnail URLs served to the WebView.
+     */
+
+    static final int THUMBNAIL_SIZE = 100;
+    private static final int THUMBNAIL_QUALITY = 75;
+    private static final String THUMBNAILS_FOLDER_NAME = ".thumbs";
+
+    // Levels of detail of the thumbnails, the denser the grid the coarser.
+    static final int LEVEL_SMALL = 0;
+    static final int LEVEL_MEDIUM = 1;
+    static final int LEVEL_LARGE = 2;
+    // The small level is the thumbnail file sampled down, the large one is made from the image.
+    private static final int[] LEVEL_SIZES = new int[] { THUMBNAIL_SIZE / 2, THUMBNAIL_SIZE, THUMBNAIL_SIZE * 2 };
+
+    /**
+     * @return The size a thumbnail of that level is decoded at, it's between that and twice that.
+     */
+    static int getLevelSize(int level) {
+        return LEVEL_SIZES[level];
+    }
+
+    /**
+     * @param filePath Path of the image.
+     * @return The file the thumbnail of this image is kept in, which may not exist yet, or null
+     * if there's nowhere to keep it.
+     */
+    static File getThumbnailFile(String filePath) {
+        File currentFile = new File(filePath);
+        File newFileFolder = new File(currentFile.getParent(), THUMBNAILS_FOLDER_NAME);
+
+        // Creates the folder if necessary. NOTE that we may not be able to write on that
+        // location. So we 1st try to create our folder, if we can't, we try to create
+        // a folder in the public directory.
+        newFileFolder.mkdirs();
+        if (!newFileFolder.isDirectory()) {
+            newFileFolder = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), THUMBNAILS_FOLDER_NAME);
+            newFileFolder.mkdirs();
+            if (!newFileFolder.isDirectory()) {
+                return null;
+            }
+
+            // We create a sub folder, in case several pictures in different folders have the same name.
+            newFileFolder = new File(newFileFolder, currentFile.getParent());
+            newFileFolder.mkdirs();
+        }
+
+        return new File(newFileFolder, currentFile.getName());
+    }
+
+    /**
+     * @return The size of the image, in outWidth and outHeight.
+     */
+    static BitmapFactory.Options decodeBounds(ContentResolver contentResolver, Uri uri) throws IOException {
+        InputStream stream = contentResolver.openInputStream(uri);
+        // stream.mark(Integer.MAX_VALUE); Can't use it, we'll have to recreate the stream.
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(stream, null, options);
+            return options;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Decodes the image at about the given size, at least that size unless the image is smaller,
+     * and rotates it.
+     *
+     * @param bounds The size of the image, from decodeBounds.
+     * @return The thumbnail, null if the image couldn't be read.
+     */
+    static Bitmap decodeThumbnail(ContentResolver contentResolver, Uri uri, BitmapFactory.Options bounds, int size,
+            int rotate) throws IOException {
+        // As we don't care about an exact size, we keep what we get.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(bounds, size, size);
+        options.inPurgeable = true;
+        ThumbnailCache.getInstance().ensureRoom(
+                4L * (bounds.outWidth / options.inSampleSize) * (bounds.outHeight / options.inSampleSize));
+        InputStream stream = contentResolver.openInputStream(uri);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            stream.close();
+        }
+
+        if (bitmap != null && rotate != 0) {
+            Matrix matrix = new Matrix();
+            matrix.setRotate(rotate);
+            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads the thumbnail file of the image, making it first if it doesn't exist yet.
+     *
+     * @return The thumbnail, null if the image couldn't be read.
+     */
+    static Bitmap loadThumbnail(ContentResolver contentResolver, Uri uri, String filePath, int rotate) throws IOException {
+        File thumbnailFile = getThumbnailFile(filePath);
+        if (thumbnailFile != null && thumbnailFile.exists()) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPurgeable = true;
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnailFile.getAbsolutePath(), options);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = decodeThumbnail(contentResolver, uri, decodeBounds(contentResolver, uri), THUMBNAIL_SIZE, rotate);
+        if (bitmap != null && thumbnailFile != null) {
+            writeThumbnail(bitmap, filePath, thumbnailFile);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Encodes the thumbnail as PNG for PNG images and as JPEG otherwise.
+     */
+    static void compressThumbnail(Bitmap bitmap, String filePath, OutputStream outStream) {
+        if (filePath.toLowerCase().endsWith(".png")) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, THUMBNAIL_QUALITY, outStream);
+        } else {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, outStream);
+        }
+    }
+
+    /**
+     * Writes the thumbnail to a temporary file first, so that a thumbnail being read by the
+     * WebView is never one being written.
+     */
+    static void writeThumbnail(Bitmap bitmap, String filePath, File thumbnailFile) throws IOException {
+        File partFile = new File(thumbnailFile.getPath() + "." + Thread.currentThread().getId() + ".part");
+        OutputStream outStream = new FileOutputStream(partFile);
+        try {
+            compressThumbnail(bitmap, filePath, outStream);
+            outStream.flush();
+        } finally {
+            outStream.close();
+        }
+        if (!partFile.renameTo(thumbnailFile)) {
+            partFile.delete();
+        }
+    }
+
+    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        // Raw height and width of image
+        final int height = options.outHeight;
+        final int width = options.outWidth;
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
+            // height and width larger than the requested height and width.
+            while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+
     /**
      * A fake Drawable that will be attached to the imageView while the download
      * is in progress.
@@ -435,12 +568,18 @@ public class ImageFetcher {
      * download finish order.
      * </p>
      */
-    static class DownloadedDrawable extends ColorDrawable {
+    static class DownloadedDrawable extends LayerDrawable {
         private final WeakReference<BitmapFetcherTask> bitmapDownloaderTaskReference;
         private long origId;
 
-        public DownloadedDrawable(Context mContext, BitmapFetcherTask bitmapDownloaderTask, long origId) {
-            super(defaultColors[random.nextInt(3)]);
+        /**
+         * @param coarser A coarser thumbnail of the image shown over the color, or null.
+         */
+        public DownloadedDrawable(Context mContext, BitmapFetcherTask bitmapDownloaderTask, long origId, int color,
+                Bitmap coarser) {
+            super(coarser != null
+                    ? new Drawable[] { new ColorDrawable(color), new BitmapDrawable(mContext.getResources(), coarser) }
+                    : new Drawable[] { new ColorDrawable(color) });
             bitmapDownloaderTaskReference = new WeakReference<BitmapFetcherTask>(bitmapDownloaderTask);
             this.origId = origId;
         }
@@ -455,103 +594,53 @@ public class ImageFetcher {
     }
 
     /*
-     * Cache-related fields and methods.
-     * 
-     * We use a hard and a soft cache. A soft reference cache is too aggressively cleared by the
-     * Garbage Collector.
+     * Cache-related methods, the thumbnails are kept by the process-wide ThumbnailCache.
      */
 
-    private static final int HARD_CACHE_CAPACITY = 100;
-    private static final int DELAY_BEFORE_PURGE = 10 * 1000; // in milliseconds
-
-    // Hard cache, with a fixed maximum capacity and a life duration
-    private final HashMap<Integer, Bitmap> sHardBitmapCache = new LinkedHashMap<Integer, Bitmap>(
-            HARD_CACHE_CAPACITY / 2, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(LinkedHashMap.Entry<Integer, Bitmap> eldest) {
-            if (size() > HARD_CACHE_CAPACITY) {
-                // Entries push-out of hard reference cache are transferred to
-                // soft reference cache
-                sSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-                return true;
-            } else
-                return false;
-        }
-    };
-
-    // Soft cache for bitmaps kicked out of hard cache
-    private final static ConcurrentHashMap<Integer, SoftReference<Bitmap>> sSoftBitmapCache = new ConcurrentHashMap<Integer, SoftReference<Bitmap>>(
-            HARD_CACHE_CAPACITY / 2);
-
-    private final Handler purgeHandler = new Handler();
-
-    private final Runnable purger = new Runnable() {
-        public void run() {
-            clearCache();
-        }
-    };
-
     /**
      * Adds this bitmap to the cache.
      *
      * @param bitmap The newly downloaded bitmap.
      */
-    private void addBitmapToCache(Integer position, Bitmap bitmap) {
-        if (bitmap != null) {
-            synchronized (sHardBitmapCache) {
-                sHardBitmapCache.put(position, bitmap);
-            }
-        }
+    private void addBitmapToCache(Integer position, int level, Bitmap bitmap) {
+        ThumbnailCache.getInstance().put(position, level, bitmap, false);
     }
 
     /**
-     * @param position The URL of the image that will be retrieved from the cache.
-     * @return The cached bitmap or null if it was not found.
+     * @param position The id of the image that will be retrieved from the cache.
+     * @return The cached bitmap at that level or a finer one, null if none was found.
      */
-    private Bitmap getBitmapFromCache(Integer position) {
-        // First try the hard reference cache
-        synchronized (sHardBitmapCache) {
-            final Bitmap bitmap = sHardBitmapCache.get(position);
+    private Bitmap getBitmapFromCache(Integer position, int level) {
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        for (int l = level; l <= LEVEL_LARGE; l++) {
+            Bitmap bitmap = cache.get(position, l);
             if (bitmap != null) {
-                // Log.d("CACHE ****** ", "Hard hit!");
-                // Bitmap found in hard cache
-                // Move element to first position, so that it is removed last
                 return bitmap;
             }
         }
+        return null;
+    }
 
-        // Then try the soft reference cache
-        SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(position);
-        if (bitmapReference != null) {
-            final Bitmap bitmap = bitmapReference.get();
+    /**
+     * @return The finest cached bitmap coarser than that level, null if none was found.
+     */
+    private Bitmap getCoarserFromCache(Integer position, int level) {
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        for (int l = level - 1; l >= LEVEL_SMALL; l--) {
+            Bitmap bitmap = cache.get(position, l);
             if (bitmap != null) {
-                // Bitmap found in soft cache
-                // Log.d("CACHE ****** ", "Soft hit!");
                 return bitmap;
-            } else {
-                // Soft reference has been Garbage Collected
-                sSoftBitmapCache.remove(position);
             }
         }
-
         return null;
     }
 
     /**
      * Clears the image cache used internally to improve performance. Note that
-     * for memory efficiency reasons, the cache will automatically be cleared
-     * after a certain inactivity delay.
+     * for memory efficiency reasons, the cache is trimmed after a certain
+     * inactivity delay.
      */
     public void clearCache() {
-        sHardBitmapCache.clear();
-        sSoftBitmapCache.clear();
-    }
-
-    /**
-     * Allow a new delay before the automatic cache clear is done.
-     */
-    private void resetPurgeTimer() {
-        // purgeHandler.removeCallbacks(purger);
-        // purgeHandler.postDelayed(purger, DELAY_BEFORE_PURGE);
+        ThumbnailCache.getInstance().clear();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+package com.synconset;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+/**
+ * Turns the items given to processImages, MediaStore ids or file paths and URIs, into the
+ * images the exporter works on. Items are looked up a batch at a time, one query for the ids
+ * and one for the paths of the batch.
+ */
+public class ImageResolver {
+    private static final String[] PROJECTION = new String[] {
+        MediaStore.Images.Media.DATA,
+        MediaStore.Images.Media._ID,
+        MediaStore.Images.Media.ORIENTATION,
+        MediaStore.Images.Media.DATE_MODIFIED,
+        MediaStore.Images.Media.SIZE,
+        MediaStore.Images.Media.DATE_TAKEN
+    };
+
+    private final ContentResolver contentResolver;
+
+    public ImageResolver(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * @param items MediaStore ids (numbers) or paths, plain or file:// URIs.
+     * @return The image of each item, in the same order, null for the items not found.
+     */
+    public List<SelectedImage> resolve(List<Object> items) {
+        List<String> ids = new ArrayList<String>();
+        List<String> paths = new ArrayList<String>();
+        for (Object item : items) {
+            if (item instanceof Number) {
+                ids.add(String.valueOf(((Number) item).longValue()));
+            } else if (item != null) {
+                paths.add(getPath(item.toString()));
+            }
+        }
+        Map<String, SelectedImage> byId = query(MediaStore.Images.Media._ID, ids);
+        Map<String, SelectedImage> byPath = query(MediaStore.Images.Media.DATA, paths);
+
+        List<SelectedImage> images = new ArrayList<SelectedImage>();
+        for (Object item : items) {
+            SelectedImage image = null;
+            if (item instanceof Number) {
+                image = byId.get(String.valueOf(((Number) item).longValue()));
+            } else if (item != null) {
+                String path = getPath(item.toString());
+                image = byPath.get(path);
+                if (image == null) {
+                    // Not in the MediaStore, the file itself still tells most of it.
+                    image = fromFile(new File(path));
+                }
+            }
+            images.add(image);
+        }
+        return images;
+    }
+
+    private Map<String, SelectedImage> query(String column, List<String> values) {
+        Map<String, SelectedImage> images = new HashMap<String, SelectedImage>();
+        if (values.isEmpty()) {
+            return images;
+        }
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+        Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                selection.toString(), values.toArray(new String[values.size()]), null);
+        if (cursor == null) {
+            return images;
+        }
+        try {
+            int keyIndex = cursor.getColumnIndexOrThrow(column);
+            while (cursor.moveToNext()) {
+                images.put(cursor.getString(keyIndex), new SelectedImage(
+                        cursor.getString(0),
+                        cursor.getLong(1),
+                        cursor.getInt(2),
+                        cursor.getLong(3),
+                        cursor.getLong(4),
+                        cursor.getLong(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return images;
+    }
+
+    private static SelectedImage fromFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        int rotation = 0;
+        try {
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    rotation = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    rotation = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    rotation = 270;
+                    break;
+            }
+        } catch (Exception e) {
+            // Not something with an EXIF header, taken as it is.
+        }
+        // DATE_MODIFIED is in seconds, so is the date the cache key is built from.
+        return new SelectedImage(file.getAbsolutePath(), -1, rotation, file.lastModified() / 1000, file.length(), 0);
+    }
+
+    private static String getPath(String item) {
+        if (item.startsWith("file:")) {
+            String path = Uri.parse(item).getPath();
+            return path != null ? path : item;
+        }
+        return item;
+    }
+}
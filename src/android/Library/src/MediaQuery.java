@@ -0,0 +1,155 @@
+package com.synconset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+
+/**
+ * Pages through the MediaStore images, newest first like the picker grid.
+ * <p/>
+ * Pages are keyset based: a page ends with the (DATE_MODIFIED, _ID) of its last image and
+ * the next page starts strictly after it. Images added or removed while paging don't shift
+ * the pages that follow, unlike an offset. The results are column oriented, one array per
+ * column, which keeps large pages compact.
+ */
+public class MediaQuery {
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private static final String[] PROJECTION = new String[] {
+        MediaStore.Images.Media._ID,
+        MediaStore.Images.Media.DATE_MODIFIED,
+        MediaStore.Images.Media.DATE_TAKEN,
+        MediaStore.Images.Media.WIDTH,
+        MediaStore.Images.Media.HEIGHT,
+        MediaStore.Images.Media.ORIENTATION,
+        MediaStore.Images.Media.MIME_TYPE
+    };
+    static final String SORT_ORDER = MediaStore.Images.Media.DATE_MODIFIED + " DESC, "
+            + MediaStore.Images.Media._ID + " DESC";
+    // The images after a (DATE_MODIFIED, _ID) in SORT_ORDER, the arguments being date, date, id.
+    static final String AFTER_SELECTION = "(" + MediaStore.Images.Media.DATE_MODIFIED + " < ? OR ("
+            + MediaStore.Images.Media.DATE_MODIFIED + " = ? AND " + MediaStore.Images.Media._ID + " < ?))";
+
+    private final ContentResolver contentResolver;
+
+    public MediaQuery(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * @param params { after, limit, bucketId, mimeTypes }, all optional. after is the next
+     *               value of the previous page.
+     * @return { ids, dateModified, dateTaken, width, height, orientation, mimeType, next }, next
+     * being null on the last page.
+     */
+    public JSONObject query(JSONObject params) throws JSONException {
+        int limit = Math.max(1, Math.min(MAX_LIMIT, params.optInt("limit", DEFAULT_LIMIT)));
+        StringBuilder selection = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+
+        String after = params.isNull("after") ? null : params.optString("after");
+        if (after != null && after.length() > 0) {
+            int separator = after.indexOf(':');
+            if (separator < 0) {
+                throw new JSONException("Invalid after: " + after);
+            }
+            String date = after.substring(0, separator);
+            String id = after.substring(separator + 1);
+            selection.append(AFTER_SELECTION);
+            args.add(date);
+            args.add(date);
+            args.add(id);
+        }
+        String bucketId = params.isNull("bucketId") ? null : params.optString("bucketId");
+        if (bucketId != null && bucketId.length() > 0) {
+            and(selection).append(MediaStore.Images.Media.BUCKET_ID + " = ?");
+            args.add(bucketId);
+        }
+        JSONArray mimeTypes = params.optJSONArray("mimeTypes");
+        if (mimeTypes != null && mimeTypes.length() > 0) {
+            and(selection).append(MediaStore.Images.Media.MIME_TYPE + " IN (");
+            for (int i = 0; i < mimeTypes.length(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                args.add(mimeTypes.getString(i));
+            }
+            selection.append(")");
+        }
+
+        // One more than the page, to know whether there is a next one.
+        Cursor cursor = query(contentResolver, PROJECTION, selection.length() > 0 ? selection.toString() : null,
+                args.toArray(new String[args.size()]), limit + 1);
+
+        JSONArray ids = new JSONArray();
+        JSONArray dates = new JSONArray();
+        JSONArray datesTaken = new JSONArray();
+        JSONArray widths = new JSONArray();
+        JSONArray heights = new JSONArray();
+        JSONArray orientations = new JSONArray();
+        JSONArray types = new JSONArray();
+        String next = null;
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    if (ids.length() == limit) {
+                        next = dates.getLong(limit - 1) + ":" + ids.getLong(limit - 1);
+                        break;
+                    }
+                    ids.put(cursor.getLong(0));
+                    dates.put(cursor.getLong(1));
+                    datesTaken.put(cursor.getLong(2));
+                    widths.put(cursor.getInt(3));
+                    heights.put(cursor.getInt(4));
+                    orientations.put(cursor.getInt(5));
+                    types.put(cursor.getString(6));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        JSONObject page = new JSONObject();
+        page.put("ids", ids);
+        page.put("dateModified", dates);
+        page.put("dateTaken", datesTaken);
+        page.put("width", widths);
+        page.put("height", heights);
+        page.put("orientation", orientations);
+        page.put("mimeType", types);
+        page.put("next", next != null ? next : JSONObject.NULL);
+        return page;
+    }
+
+    /**
+     * Queries at most limit images in SORT_ORDER.
+     */
+    static Cursor query(ContentResolver contentResolver, String[] projection, String selection, String[] args, int limit) {
+        if (Build.VERSION.SDK_INT >= 26) {
+            // Android 11 rejects a LIMIT in the sort order, the limit goes in the query arguments.
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, SORT_ORDER);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+            return contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, queryArgs, null);
+        }
+        return contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, selection, args,
+                SORT_ORDER + " LIMIT " + limit);
+    }
+
+    private static StringBuilder and(StringBuilder selection) {
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+        return selection;
+    }
+}
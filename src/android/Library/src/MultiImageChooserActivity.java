@@ -30,17 +30,17 @@
 
 package com.synconset;
 
-import java.net.URI;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import com.synconset.FakeR;
 import android.app.Activity;
@@ -54,11 +54,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.graphics.Matrix;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -66,20 +62,22 @@ import android.provider.MediaStore;
 import android.util.SparseBooleanArray;
 import android.view.Display;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.ArrayAdapter;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
+import android.widget.Spinner;
 import android.widget.TextView;
 
 import org.apache.cordova.LOG;
-import java.nio.channels.FileChannel;
-import java.io.FileInputStream;
 
 
 public class MultiImageChooserActivity extends Activity implements OnItemClickListener,
@@ -91,6 +89,17 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
     public static final String WIDTH_KEY = "WIDTH";
     public static final String HEIGHT_KEY = "HEIGHT";
     public static final String QUALITY_KEY = "QUALITY";
+    public static final String PASSTHROUGH_KEY = "PASSTHROUGH";
+    public static final String LOSSLESS_ROTATION_KEY = "LOSSLESS_ROTATION";
+    public static final String CACHE_KEY = "CACHE";
+    public static final String CACHE_SIZE_KEY = "CACHE_SIZE";
+    public static final String FORMAT_KEY = "FORMAT";
+    public static final String MAX_BYTES_KEY = "MAX_BYTES";
+    public static final String RENDITIONS_KEY = "RENDITIONS";
+    public static final String DETAILED_RESULTS_KEY = "DETAILED_RESULTS";
+    public static final String HASH_KEY = "HASH";
+    public static final String JOB_ID_KEY = "JOBID";
+    public static final String BUCKET_KEY = "BUCKET";
 	
 	// we add 2 more variables for the title and description localization, will be used for messages and 
 	public static final String LOADING_BOX_TITLE = "TITLE";
@@ -100,21 +109,48 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
 
     private Cursor imagecursor, actualimagecursor;
     private int image_column_index, image_column_orientation, actual_image_column_index, orientation_column_index;
+    private int actual_id_column_index, date_modified_column_index, size_column_index, date_taken_column_index;
     private int colWidth;
+    private int screenWidth;
+    // Changed by pinching, from MIN_COLUMNS to MAX_COLUMNS. See setColumns.
+    private int columns;
+    private int defaultColumns;
+    private int thumbnailLevel = ImageFetcher.LEVEL_MEDIUM;
+
+    private static final int MIN_COLUMNS = 2;
+    private static final int MAX_COLUMNS = 12;
+    // Spacing of the grid at the default columns, same as the layout.
+    private static final int GRID_SPACING_DIP = 8;
 
     private static final int CURSORLOADER_THUMBS = 0;
     private static final int CURSORLOADER_REAL = 1;
 
-    private Map<String, Integer> fileNames = new HashMap<String, Integer>();
+    private Map<String, SelectedImage> fileNames = new HashMap<String, SelectedImage>();
 
+    // By image id, the positions change with the album shown.
     private SparseBooleanArray checkStatus = new SparseBooleanArray();
 
+    // The album shown, null for all the pictures. See setBucket.
+    private String bucketId;
+    private Spinner bucketSpinner;
+    private List<BucketIndex.Bucket> buckets;
+
     private int maxImages;
     private int maxImageCount;
     
-    private int desiredWidth;
-    private int desiredHeight;
-    private int quality;
+    private ExportOptions exportOptions;
+    private ImageExporter exporter;
+    private OutputStore.Session session;
+    private boolean exporting;
+    // The job being looked up by resumeExport, null once it's found or the activity is gone.
+    private String resumingJobId;
+    private ExportQueue.Job job;
+
+    // Exports started while the user is still picking, by path.
+    private final Map<String, SpeculativeExport> speculativeExports = new HashMap<String, SpeculativeExport>();
+    // Stays out of the way of the UI and of the thumbnail decoding.
+    private final ExecutorService speculativeExecutor = Executors.newSingleThreadExecutor(
+            new BackgroundThreadFactory("ImagePicker-speculative"));
 
     private String title;
     private String description;
@@ -122,6 +158,11 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
     private GridView gridView;
 
     private final ImageFetcher fetcher = new ImageFetcher();
+    // Shown until the gallery query is done, if the picker was warmed up.
+    private PickerWarmUp.FirstScreen firstScreen;
+    // The items on screen, see updateVisible.
+    private int visibleFirst = -1;
+    private int visibleCount;
 
     private int selectedColor = 0xff32b2e1; 
     private boolean shouldRequestThumb = true;
@@ -133,26 +174,61 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final long createTime = System.currentTimeMillis();
         fakeR = new FakeR(this);
+        ThumbnailCache.getInstance().register(this);
+        // Starts loading the colors shown until the thumbnails are there.
+        PreviewIndex.getInstance(this);
         setContentView(fakeR.getId("layout", "multiselectorgrid"));
         fileNames.clear();
 
         maxImages = getIntent().getIntExtra(MAX_IMAGES_KEY, NOLIMIT);
-        desiredWidth = getIntent().getIntExtra(WIDTH_KEY, 0);
-        desiredHeight = getIntent().getIntExtra(HEIGHT_KEY, 0);
-        quality = getIntent().getIntExtra(QUALITY_KEY, 0);
+        exportOptions = ExportOptions.fromIntent(getIntent());
+        exporter = new ImageExporter(this, exportOptions);
         maxImageCount = maxImages;
 
         title = getIntent().getStringExtra(LOADING_BOX_TITLE);
         description = getIntent().getStringExtra(LOADING_BOX_DESCRIPTION);
 
         Display display = getWindowManager().getDefaultDisplay();
-        int width = display.getWidth();
-        
-        colWidth = width / 4;
+        screenWidth = display.getWidth();
+        defaultColumns = getResources().getInteger(fakeR.getId("integer", "grid_cols"));
 
         gridView = (GridView) findViewById(fakeR.getId("id", "gridview"));
+        setColumns(defaultColumns);
         gridView.setOnItemClickListener(this);
+        final ScaleGestureDetector scaleDetector = new ScaleGestureDetector(this,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            private int startColumns;
+            private float scale;
+
+            @Override
+            public boolean onScaleBegin(ScaleGestureDetector detector) {
+                startColumns = columns;
+                scale = 1;
+                // The pinch takes the gesture over, the grid stops scrolling.
+                MotionEvent cancel = MotionEvent.obtain(0, 0, MotionEvent.ACTION_CANCEL, 0, 0, 0);
+                gridView.onTouchEvent(cancel);
+                cancel.recycle();
+                return true;
+            }
+
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                scale *= detector.getScaleFactor();
+                // Fingers coming together give more, smaller cells.
+                int newColumns = Math.round(startColumns / scale);
+                setColumns(Math.max(MIN_COLUMNS, Math.min(MAX_COLUMNS, newColumns)));
+                return true;
+            }
+        });
+        gridView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                scaleDetector.onTouchEvent(event);
+                return scaleDetector.isInProgress();
+            }
+        });
         gridView.setOnScrollListener(new OnScrollListener() {
             private int lastFirstItem = 0;
             private long timestamp = System.currentTimeMillis();
@@ -167,6 +243,7 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
 
             @Override
             public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                updateVisible(firstVisibleItem, visibleItemCount);
                 float dt = System.currentTimeMillis() - timestamp;
                 if (firstVisibleItem != lastFirstItem) {
                     double speed = 1 / dt * 1000;
@@ -179,6 +256,20 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
             }
         });
 
+        bucketId = getIntent().getStringExtra(BUCKET_KEY);
+        firstScreen = PickerWarmUp.getInstance().take();
+        if (bucketId != null) {
+            // Warmed up with all the pictures.
+            firstScreen = null;
+        }
+        final boolean warm = firstScreen != null;
+        fetcher.setOnFirstImage(new Runnable() {
+            public void run() {
+                LOG.d(LOG_TAG, "First thumbnail shown after " + (System.currentTimeMillis() - createTime) + " ms"
+                        + (warm ? " (warmed up)" : ""));
+            }
+        });
+
         ia = new ImageAdapter(this);
         gridView.setAdapter(ia);
 
@@ -187,21 +278,74 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
         getLoaderManager().initLoader(CURSORLOADER_REAL, null, this);
         setupHeader();
         updateAcceptButton();
+        loadBuckets();
         
         progress = new ProgressDialog(this);
         progress.setTitle(title);
         progress.setMessage(description);
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setIndeterminate(false);
+        progress.setCancelable(true);
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.cancel();
+            }
+        });
+        progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                stopExport();
+            }
+        });
+
+        if (savedInstanceState != null && savedInstanceState.getString(JOB_ID_KEY) != null) {
+            resumeExport(savedInstanceState.getString(JOB_ID_KEY));
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Nothing on screen any more, all the thumbnails can go if memory gets low.
+        ThumbnailCache.getInstance().setVisible(new ArrayList<Integer>());
+        if (!exporting) {
+            // Picking was abandoned, nothing speculative is going to be handed back.
+            for (SpeculativeExport speculative : speculativeExports.values()) {
+                speculative.discard();
+            }
+            speculativeExports.clear();
+            speculativeExecutor.shutdownNow();
+            abortSession();
+        } else {
+            // The job carries on without the activity, a new one picks it up from the saved state.
+            speculativeExecutor.shutdown();
+            if (job != null) {
+                job.removeListener(jobListener);
+            }
+            resumingJobId = null;
+            progress.dismiss();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (job != null) {
+            outState.putString(JOB_ID_KEY, job.id);
+        } else if (resumingJobId != null) {
+            outState.putString(JOB_ID_KEY, resumingJobId);
+        }
     }
     
     @Override
     public void onItemClick(AdapterView<?> arg0, View view, int position, long id) {
         String name = getImageName(position);
-        int rotation = getImageRotation(position);
 
         if (name == null) {
             return;
         }
-        boolean isChecked = !isChecked(position);
+        int imageId = actualimagecursor.getInt(actual_id_column_index);
+        boolean isChecked = !isChecked(imageId);
         if (maxImages == 0 && isChecked) {
             isChecked = false;
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -215,10 +359,14 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
             AlertDialog alert = builder.create();
             alert.show();
         } else if (isChecked) {
-            fileNames.put(name, new Integer(rotation));
+            SelectedImage image = getSelectedImage(position, name);
+            fileNames.put(name, image);
             if (maxImageCount == 1) {
                 this.selectClicked(null);
             } else {
+                SpeculativeExport speculative = new SpeculativeExport(image);
+                speculativeExports.put(name, speculative);
+                speculativeExecutor.execute(speculative);
                 maxImages--;
                 ImageView imageView = (ImageView)view;
                 if (android.os.Build.VERSION.SDK_INT>=16) {
@@ -230,6 +378,10 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
             }
         } else {
             fileNames.remove(name);
+            SpeculativeExport speculative = speculativeExports.remove(name);
+            if (speculative != null) {
+                speculative.discard();
+            }
             maxImages++;
             ImageView imageView = (ImageView)view;
             if (android.os.Build.VERSION.SDK_INT>=16) {
@@ -240,7 +392,7 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
             view.setBackgroundColor(Color.TRANSPARENT);
         }
 
-        checkStatus.put(position, isChecked);
+        checkStatus.put(imageId, isChecked);
         updateAcceptButton();
     }
 
@@ -258,13 +410,20 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
         case CURSORLOADER_REAL:
             img.add(MediaStore.Images.Thumbnails.DATA);
             img.add(MediaStore.Images.Media.ORIENTATION);
+            img.add(MediaStore.Images.Media._ID);
+            img.add(MediaStore.Images.Media.DATE_MODIFIED);
+            img.add(MediaStore.Images.Media.SIZE);
+            img.add(MediaStore.Images.Media.DATE_TAKEN);
             break;
         default:
             break;
         }
 
+        // MediaStore filters the album, only its rows are loaded.
+        String selection = bucketId != null ? MediaStore.Images.Media.BUCKET_ID + " = ?" : null;
+        String[] selectionArgs = bucketId != null ? new String[] { bucketId } : null;
         cl = new CursorLoader(MultiImageChooserActivity.this, MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                img.toArray(new String[img.size()]), null, null, "DATE_MODIFIED DESC");
+                img.toArray(new String[img.size()]), selection, selectionArgs, "DATE_MODIFIED DESC");
         return cl;
     }
 
@@ -280,6 +439,9 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
                 imagecursor = cursor;
                 image_column_index = imagecursor.getColumnIndex(MediaStore.Images.Media._ID);
                 image_column_orientation = imagecursor.getColumnIndex(MediaStore.Images.Media.ORIENTATION);
+                firstScreen = null;
+                // Same positions, the ids may have changed.
+                visibleFirst = -1;
                 ia.notifyDataSetChanged();
                 break;
             case CURSORLOADER_REAL:
@@ -287,6 +449,10 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
                 String[] columns = actualimagecursor.getColumnNames();
                 actual_image_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
                 orientation_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.ORIENTATION);
+                actual_id_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+                date_modified_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED);
+                size_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.SIZE);
+                date_taken_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_TAKEN);
                 break;
             default:
                 break;
@@ -317,7 +483,72 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
             progress.dismiss();
             finish();
         } else {
-            new ResizeImagesTask().execute(fileNames.entrySet());
+            exporting = true;
+            progress.setMax(fileNames.size());
+            progress.setProgress(0);
+            try {
+                job = ExportQueue.getInstance(this).submit(exportOptions, new ArrayList<SelectedImage>(fileNames.values()),
+                        getSession(), new HashMap<String, ExportQueue.StartedExport>(speculativeExports));
+            } catch (IOException e) {
+                data.putExtra("ERRORMESSAGE", e.getMessage());
+                setResult(RESULT_CANCELED, data);
+                abortSession();
+                progress.dismiss();
+                finish();
+                return;
+            }
+            job.addListener(jobListener);
+        }
+    }
+
+    /**
+     * Follows the job an earlier instance of the activity submitted. The queue may still be
+     * reading its jobs back, the job is attached once it's found.
+     */
+    private void resumeExport(String jobId) {
+        exporting = true;
+        resumingJobId = jobId;
+        progress.show();
+        ExportQueue.getInstance(this).getJob(jobId, new ExportQueue.JobCallback() {
+            public void onJob(ExportQueue.Job found) {
+                if (resumingJobId == null) {
+                    // The activity went away in the meantime.
+                    return;
+                }
+                resumingJobId = null;
+                if (found == null) {
+                    exporting = false;
+                    progress.dismiss();
+                    return;
+                }
+                job = found;
+                progress.setMax(job.images.size());
+                progress.setProgress(job.getDoneCount());
+                job.addListener(jobListener);
+            }
+        });
+    }
+
+    private void stopExport() {
+        if (job != null && !job.isFinished()) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * The session is started with the first export, speculative or not.
+     */
+    private synchronized OutputStore.Session getSession() throws IOException {
+        if (session == null) {
+            session = OutputStore.getInstance(this).beginSession();
+        }
+        return session;
+    }
+
+    private synchronized void abortSession() {
+        if (session != null) {
+            session.abort();
+            session = null;
         }
     }
     
@@ -375,7 +606,142 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
                 ViewGroup.LayoutParams.MATCH_PARENT));
     }
 
+    /**
+     * Gets the albums in the background, shown in a spinner above the grid if there are several.
+     */
+    private void loadBuckets() {
+        final Context context = getApplicationContext();
+        new AsyncTask<Void, Void, List<BucketIndex.Bucket>>() {
+            @Override
+            protected List<BucketIndex.Bucket> doInBackground(Void... params) {
+                return BucketIndex.getInstance().getBuckets(context);
+            }
+
+            @Override
+            protected void onPostExecute(List<BucketIndex.Bucket> result) {
+                if (!isFinishing()) {
+                    showBuckets(result);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void showBuckets(List<BucketIndex.Bucket> result) {
+        if (result.size() < 2) {
+            return;
+        }
+        buckets = result;
+        List<String> labels = new ArrayList<String>();
+        labels.add(getString(fakeR.getId("string", "all_buckets")));
+        int selected = 0;
+        for (int i = 0; i < buckets.size(); i++) {
+            BucketIndex.Bucket bucket = buckets.get(i);
+            labels.add((bucket.name != null ? bucket.name : bucket.id) + " (" + bucket.count + ")");
+            if (bucket.id.equals(bucketId)) {
+                selected = i + 1;
+            }
+        }
+        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, labels);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        bucketSpinner = (Spinner) findViewById(fakeR.getId("id", "bucket_spinner"));
+        bucketSpinner.setAdapter(adapter);
+        bucketSpinner.setSelection(selected);
+        bucketSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                setBucket(position == 0 ? null : buckets.get(position - 1).id);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        bucketSpinner.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Shows the pictures of that album, all of them for null. The checked ones stay checked.
+     */
+    private void setBucket(String newBucketId) {
+        if (newBucketId == null ? bucketId == null : newBucketId.equals(bucketId)) {
+            return;
+        }
+        bucketId = newBucketId;
+        // The old rows are at other positions, nothing is shown until the album is loaded.
+        imagecursor = null;
+        actualimagecursor = null;
+        firstScreen = null;
+        visibleFirst = -1;
+        ia.notifyDataSetChanged();
+        gridView.setSelection(0);
+        getLoaderManager().restartLoader(CURSORLOADER_THUMBS, null, this);
+        getLoaderManager().restartLoader(CURSORLOADER_REAL, null, this);
+    }
+
+    /**
+     * Changes the columns of the grid, keeping the first image on screen, and the level of detail
+     * of the thumbnails with them.
+     */
+    private void setColumns(int newColumns) {
+        if (newColumns == columns) {
+            return;
+        }
+        int first = gridView.getFirstVisiblePosition();
+        columns = newColumns;
+        colWidth = screenWidth / columns;
+        thumbnailLevel = getThumbnailLevel(columns);
+        // Tighter as the grid gets denser.
+        int spacing = Math.round(GRID_SPACING_DIP * getResources().getDisplayMetrics().density
+                * Math.min(1, (float) defaultColumns / columns));
+        gridView.setHorizontalSpacing(spacing);
+        gridView.setVerticalSpacing(spacing);
+        gridView.setNumColumns(columns);
+        gridView.setSelection(first);
+        if (ia != null) {
+            ia.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * @return The coarsest level of detail good enough for that many columns: the medium one at
+     * the default columns, the small one from twice as many, the large one below.
+     */
+    private int getThumbnailLevel(int columns) {
+        if (columns >= 2 * defaultColumns) {
+            return ImageFetcher.LEVEL_SMALL;
+        } else if (columns < defaultColumns) {
+            return ImageFetcher.LEVEL_LARGE;
+        }
+        return ImageFetcher.LEVEL_MEDIUM;
+    }
+
+    /**
+     * Tells the thumbnail cache what's on screen, the thumbnails it keeps when memory gets low.
+     */
+    private void updateVisible(int first, int count) {
+        if (first == visibleFirst && count == visibleCount) {
+            return;
+        }
+        visibleFirst = first;
+        visibleCount = count;
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int position = first; position < first + count; position++) {
+            if (imagecursor != null) {
+                if (imagecursor.moveToPosition(position)) {
+                    ids.add(imagecursor.getInt(image_column_index));
+                }
+            } else if (firstScreen != null && position < firstScreen.ids.length) {
+                ids.add(firstScreen.ids[position]);
+            }
+        }
+        ThumbnailCache.getInstance().setVisible(ids);
+    }
+
     private String getImageName(int position) {
+        if (actualimagecursor == null) {
+            // Only the warmed up first screen is there yet.
+            return null;
+        }
         actualimagecursor.moveToPosition(position);
         String name = null;
 
@@ -398,9 +764,19 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
         }
         return rotation;
     }
+
+    private SelectedImage getSelectedImage(int position, String name) {
+        actualimagecursor.moveToPosition(position);
+        return new SelectedImage(name,
+                actualimagecursor.getLong(actual_id_column_index),
+                getImageRotation(position),
+                actualimagecursor.getLong(date_modified_column_index),
+                actualimagecursor.getLong(size_column_index),
+                actualimagecursor.getLong(date_taken_column_index));
+    }
     
-    public boolean isChecked(int position) {
-        boolean ret = checkStatus.get(position);
+    public boolean isChecked(int imageId) {
+        boolean ret = checkStatus.get(imageId);
         return ret;
     }
 
@@ -421,20 +797,14 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
     
     
     private class ImageAdapter extends BaseAdapter {
-        private final Bitmap mPlaceHolderBitmap;
-
         public ImageAdapter(Context c) {
-            Bitmap tmpHolderBitmap = BitmapFactory.decodeResource(getResources(), fakeR.getId("drawable", "loading_icon"));
-            mPlaceHolderBitmap = Bitmap.createScaledBitmap(tmpHolderBitmap, colWidth, colWidth, false);
-            if (tmpHolderBitmap != mPlaceHolderBitmap) {
-                tmpHolderBitmap.recycle();
-                tmpHolderBitmap = null;
-            }
         }
 
         public int getCount() {
             if (imagecursor != null) {
                 return imagecursor.getCount();
+            } else if (firstScreen != null) {
+                return firstScreen.ids.length;
             } else {
                 return 0;
             }
@@ -461,18 +831,25 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
             imageView.setImageBitmap(null);
 
             final int position = pos;
+            final int id;
+            final int rotate;
 
-            if (!imagecursor.moveToPosition(position)) {
-                return imageView;
-            }
+            if (imagecursor == null) {
+                id = firstScreen.ids[position];
+                rotate = firstScreen.orientations[position];
+            } else {
+                if (!imagecursor.moveToPosition(position)) {
+                    return imageView;
+                }
 
-            if (image_column_index == -1) {
-                return imageView;
-            }
+                if (image_column_index == -1) {
+                    return imageView;
+                }
 
-            final int id = imagecursor.getInt(image_column_index);
-            final int rotate = imagecursor.getInt(image_column_orientation);
-            if (isChecked(pos)) {
+                id = imagecursor.getInt(image_column_index);
+                rotate = imagecursor.getInt(image_column_orientation);
+            }
+            if (isChecked(id)) {
                 if (android.os.Build.VERSION.SDK_INT>=16) {
                   imageView.setImageAlpha(128);
                 } else {
@@ -488,298 +865,96 @@ public class MultiImageChooserActivity extends Activity implements OnItemClickLi
                 imageView.setBackgroundColor(Color.TRANSPARENT);
             }
             if (shouldRequestThumb) {
-                fetcher.fetch(Integer.valueOf(id), imageView, colWidth, rotate);
+                fetcher.fetch(Integer.valueOf(id), imageView, colWidth, rotate, thumbnailLevel);
             }
 
             return imageView;
         }
     }
     
-    private class ResizeImagesTask extends AsyncTask<Set<Entry<String, Integer>>, Void, ArrayList<String>> {
-        private Exception asyncTaskError = null;
+    /**
+     * Export of one image started in the background as soon as the image gets checked, so the
+     * work is mostly done by the time the user taps Done. Unchecking the image discards it.
+     */
+    private class SpeculativeExport extends FutureTask<ImageExporter.Result> implements ExportQueue.StartedExport {
+        private final ImageExporter.Cancellation cancellation;
+        private ImageExporter.Result result;
+        private boolean discarded;
+
+        public SpeculativeExport(SelectedImage image) {
+            this(image, new ImageExporter.Cancellation());
+        }
 
-        @Override
-        protected ArrayList<String> doInBackground(Set<Entry<String, Integer>>... fileSets) {
-            Set<Entry<String, Integer>> fileNames = fileSets[0];
-            ArrayList<String> al = new ArrayList<String>();
-            try {
-                Iterator<Entry<String, Integer>> i = fileNames.iterator();
-                Bitmap bmp;
-                while(i.hasNext()) {
-                    Entry<String, Integer> imageInfo = i.next();
-                    File file = new File(imageInfo.getKey());
-                    int rotate = imageInfo.getValue().intValue();
-                    BitmapFactory.Options options = new BitmapFactory.Options();
-                    options.inSampleSize = 1;
-                    options.inJustDecodeBounds = true;
-                    BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-                    int width = options.outWidth;
-                    int height = options.outHeight;
-                    float scale = calculateScale(width, height);
-                    if (scale < 1) {
-                        int finalWidth = (int)(width * scale);
-                        int finalHeight = (int)(height * scale);
-                        int inSampleSize = calculateInSampleSize(options, finalWidth, finalHeight);
-                        options = new BitmapFactory.Options();
-                        options.inSampleSize = inSampleSize;
-                        try {
-                            bmp = this.tryToGetBitmap(file, options, rotate, true);
-                        } catch (OutOfMemoryError e) {
-                            options.inSampleSize = calculateNextSampleSize(options.inSampleSize);
-                            try {
-                                bmp = this.tryToGetBitmap(file, options, rotate, false);
-                            } catch (OutOfMemoryError e2) {
-                                throw new IOException("Unable to load image into memory.");
-                            }
-                        }
-
-                        file = this.storeImage(bmp, file.getName());
-                    }
-                    else {
-						// Don't load the bitmap if we don't want to resize the image, simply copy the file.
-						/*
-							try {
-								bmp = this.tryToGetBitmap(file, null, rotate, false);
-							} catch(OutOfMemoryError e) {
-								options = new BitmapFactory.Options();
-								options.inSampleSize = 2;
-								try {
-									bmp = this.tryToGetBitmap(file, options, rotate, false);
-								} catch(OutOfMemoryError e2) {
-									options = new BitmapFactory.Options();
-									options.inSampleSize = 4;
-									try {
-										bmp = this.tryToGetBitmap(file, options, rotate, false);
-									} catch (OutOfMemoryError e3) {
-										throw new IOException("Unable to load image into memory.");
-									}
-								}
-							}
-						*/
-						File tempFile = this.createTempFile(file.getName());
-						this.copyFile(file, tempFile);
-						file = tempFile;
-                    }
-
-                    al.add(Uri.fromFile(file).toString());
-                }
-                return al;
-            } catch(IOException e) {
-                try {
-                    asyncTaskError = e;
-                    for (int i = 0; i < al.size(); i++) {
-                        URI uri = new URI(al.get(i));
-                        File file = new File(uri);
-                        file.delete();
-                    }
-                } catch(Exception exception) {
-                    // the finally does what we want to do
-                } finally {
-                    return new ArrayList<String>();
+        private SpeculativeExport(final SelectedImage image, final ImageExporter.Cancellation cancellation) {
+            super(new Callable<ImageExporter.Result>() {
+                public ImageExporter.Result call() throws IOException {
+                    return exporter.export(image, getSession(), cancellation);
                 }
-            }
+            });
+            this.cancellation = cancellation;
         }
-        
-        @Override
-        protected void onPostExecute(ArrayList<String> al) {
-            Intent data = new Intent();
 
-            if (asyncTaskError != null) {
-                Bundle res = new Bundle();
-                res.putString("ERRORMESSAGE", asyncTaskError.getMessage());
-                data.putExtras(res);
-                setResult(RESULT_CANCELED, data);
-            } else if (al.size() > 0) {
-                Bundle res = new Bundle();
-                res.putStringArrayList("MULTIPLEFILENAMES", al);
-                if (imagecursor != null) {
-                    res.putInt("TOTALFILES", imagecursor.getCount());
+        @Override
+        protected void set(ImageExporter.Result exported) {
+            synchronized (this) {
+                if (discarded) {
+                    exporter.discard(exported);
+                } else {
+                    result = exported;
                 }
-                data.putExtras(res);
-                setResult(RESULT_OK, data);
-            } else {
-                setResult(RESULT_CANCELED, data);
             }
-
-            progress.dismiss();
-            finish();
+            super.set(exported);
         }
 
-		private void copyFile(File sourceFile, File destFile) {
-			try {
-				if (!sourceFile.exists()) {
-					LOG.d(LOG_TAG, "Source file does not exist!");
-					return;
-				}
-				
-				if (!destFile.exists()) {
-					destFile.createNewFile();
-				}
-
-				LOG.d(LOG_TAG, "Source file exists");
-				FileChannel source = null;
-				FileChannel destination = null;
-				source = new FileInputStream(sourceFile).getChannel();
-				destination = new FileOutputStream(destFile).getChannel();
-				if (destination != null && source != null) {
-					LOG.d(LOG_TAG, "Copying file...");
-					destination.transferFrom(source, 0, source.size());
-					LOG.d(LOG_TAG, "File copied");
-				}
-				if (source != null) {
-					LOG.d(LOG_TAG, "Closing source");
-					source.close();
-				}
-				if (destination != null) {
-					LOG.d(LOG_TAG, "Closing destination");
-					destination.close();
-				}
-			} catch (IOException e) {
-				LOG.e(LOG_TAG, "Error copying the file: " + e.toString());
-			}
-		}
-
-/*		
-		private String getTempDirectoryPath() {
-			File cache = null;
-
-			// SD Card Mounted
-			if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-				cache = new File(Environment.getExternalStorageDirectory().getAbsolutePath() +
-						"/Android/data/" + cordova.getActivity().getPackageName() + "/cache/");
-			}
-			// Use internal storage
-			else {
-				cache = cordova.getActivity().getCacheDir();
-			}
-
-			// Create the cache directory if it doesn't exist
-			cache.mkdirs();
-			return cache.getAbsolutePath();
-		}
-*/
-
-		private int createTempFileIndex = 0;
-		private File createTempFile(String fileName) throws IOException {
-			int index = fileName.lastIndexOf('.');
-			String name = fileName.substring(0, index);
-			String ext = fileName.substring(index);
-			// Handles the case where the name is less than 3 characters, as createTempFile would throw an exception.
-			if (name.length() < 3) {
-				name += "aa" + createTempFileIndex++;
-			}
-			return File.createTempFile(name, ext);
-		}
-		
-        private Bitmap tryToGetBitmap(File file, BitmapFactory.Options options, int rotate, boolean shouldScale) throws IOException, OutOfMemoryError {
-            Bitmap bmp;
-            if (options == null) {
-                bmp = BitmapFactory.decodeFile(file.getAbsolutePath());
-            } else {
-                bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-            }
-            if (bmp == null) {
-                throw new IOException("The image file could not be opened.");
-            }
-            if (options != null && shouldScale) {
-                float scale = calculateScale(options.outWidth, options.outHeight);
-                bmp = this.getResizedBitmap(bmp, scale);
-            }
-            if (rotate != 0) {
-                Matrix matrix = new Matrix();
-                matrix.setRotate(rotate);
-                bmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+        public ImageExporter.Result getResult() throws IOException {
+            // Runs it right here if the background thread didn't get to it yet, otherwise only
+            // waits for it to finish.
+            run();
+            try {
+                return get();
+            } catch (CancellationException e) {
+                throw new ImageExporter.CancelledException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            } catch (InterruptedException e) {
+                throw new IOException("The export was interrupted.");
             }
-            return bmp;
         }
-        
-        /*
-        * The following functions are originally from
-        * https://github.com/raananw/PhoneGap-Image-Resizer
-        * 
-        * They have been modified by Andrew Stephan for Sync OnSet
-        *
-        * The software is open source, MIT Licensed.
-        * Copyright (C) 2012, webXells GmbH All Rights Reserved.
-        */
-        private File storeImage(Bitmap bmp, String fileName) throws IOException {
-            File file = this.createTempFile(fileName);
-            OutputStream outStream = new FileOutputStream(file);
-
-			int index = fileName.lastIndexOf('.');
-			String ext = fileName.substring(index);
-            if (ext.compareToIgnoreCase(".png") == 0) {
-                bmp.compress(Bitmap.CompressFormat.PNG, quality, outStream);
-            } else {
-                bmp.compress(Bitmap.CompressFormat.JPEG, quality, outStream);
-            }
-            outStream.flush();
-            outStream.close();
-            return file;
+
+        /**
+         * Stops the export if it is under way, a finished one is left alone.
+         */
+        public void stop() {
+            cancellation.cancel();
         }
-    
-        private Bitmap getResizedBitmap(Bitmap bm, float factor) {
-            int width = bm.getWidth();
-            int height = bm.getHeight();
-            // create a matrix for the manipulation
-            Matrix matrix = new Matrix();
-            // resize the bit map
-            matrix.postScale(factor, factor);
-            // recreate the new Bitmap
-            Bitmap resizedBitmap = Bitmap.createBitmap(bm, 0, 0, width, height, matrix, false);
-            return resizedBitmap;
+
+        public synchronized void discard() {
+            discarded = true;
+            cancellation.cancel();
+            cancel(false);
+            exporter.discard(result);
+            result = null;
         }
     }
-    
-    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-    
-        if (height > reqHeight || width > reqWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
-    
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
-                inSampleSize *= 2;
-            }
+
+    /**
+     * Follows the export job, the activity is done once the job is.
+     */
+    private final ExportQueue.Listener jobListener = new ExportQueue.Listener() {
+        public void onProgress(ExportQueue.Job job, int done, int total) {
+            progress.setProgress(done);
         }
-    
-        return inSampleSize;
-    }
 
-    private int calculateNextSampleSize(int sampleSize) {
-        double logBaseTwo = (int)(Math.log(sampleSize) / Math.log(2));
-        return (int)Math.pow(logBaseTwo + 1, 2);
-    }
-    
-    private float calculateScale(int width, int height) {
-        float widthScale = 1.0f;
-        float heightScale = 1.0f;
-        float scale = 1.0f;
-        if (desiredWidth > 0 || desiredHeight > 0) {
-            if (desiredHeight == 0 && desiredWidth < width) {
-                scale = (float)desiredWidth/width;
-            } else if (desiredWidth == 0 && desiredHeight < height) {
-                scale = (float)desiredHeight/height;
-            } else {
-                if (desiredWidth > 0 && desiredWidth < width) {
-                    widthScale = (float)desiredWidth/width;
-                }
-                if (desiredHeight > 0 && desiredHeight < height) {
-                    heightScale = (float)desiredHeight/height;
-                }
-                if (widthScale < heightScale) {
-                    scale = widthScale;
-                } else {
-                    scale = heightScale;
-                }
-            }
+        public void onFinished(ExportQueue.Job job) {
+            // The plugin collects the results from the queue, only the job goes through the intent.
+            Intent data = new Intent();
+            data.putExtra(JOB_ID_KEY, job.id);
+            setResult(RESULT_OK, data);
+            progress.dismiss();
+            finish();
         }
-        
-        return scale;
-    }
+    };
 }
@@ -0,0 +1,285 @@
+package com.synconset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Owns the directory the processed images are written to.
+ * <p/>
+ * Every export writes into its own session directory, which is marked complete once the
+ * results are handed back. Sessions that never completed, and whose job the export queue
+ * doesn't hold, were left by a crash and are removed at startup. Completed results are removed when the app releases them, when they get older
+ * than the maximum age, or oldest first when the directory grows over its quota. Eviction
+ * runs on a background thread.
+ */
+public class OutputStore {
+    private static final String LOG_TAG = "OutputStore";
+    private static final String DIRECTORY_NAME = "imagepicker-output";
+    private static final String COMPLETE_MARKER = ".complete";
+    private static final String PREFERENCES_NAME = "imagepicker";
+    private static final String PREF_MAX_BYTES = "outputMaxBytes";
+    private static final String PREF_MAX_AGE = "outputMaxAge";
+
+    public static final long DEFAULT_MAX_BYTES = 200 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static OutputStore instance;
+
+    private final File root;
+    private final SharedPreferences preferences;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Sessions started by this process, the startup cleanup must leave them alone.
+    private final Set<File> liveSessions = Collections.synchronizedSet(new HashSet<File>());
+    private int sessionIndex = 0;
+
+    public static synchronized OutputStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new OutputStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private OutputStore(Context context) {
+        root = new File(context.getCacheDir(), DIRECTORY_NAME);
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Starts a new export session, the files of one export are created in its directory.
+     */
+    public synchronized Session beginSession() throws IOException {
+        File dir = new File(root, System.currentTimeMillis() + "-" + sessionIndex++);
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create the output directory.");
+        }
+        liveSessions.add(dir);
+        return new Session(dir);
+    }
+
+    /**
+     * Reopens the session of an export that was interrupted, so it can carry on writing to it.
+     *
+     * @return The session, or null if its directory is gone.
+     */
+    public Session resumeSession(String name) {
+        File dir = new File(root, name);
+        if (!dir.isDirectory() || new File(dir, COMPLETE_MARKER).exists()) {
+            return null;
+        }
+        liveSessions.add(dir);
+        return new Session(dir);
+    }
+
+    /**
+     * @return How long completed results are kept, as set with setLimits.
+     */
+    public long getMaxAge() {
+        return preferences.getLong(PREF_MAX_AGE, DEFAULT_MAX_AGE);
+    }
+
+    public void setLimits(long maxBytes, long maxAge) {
+        preferences.edit()
+                .putLong(PREF_MAX_BYTES, maxBytes)
+                .putLong(PREF_MAX_AGE, maxAge)
+                .commit();
+        trimAsync();
+    }
+
+    /**
+     * Deletes results the app is done with. Only files of this store are deleted, anything
+     * else (original pictures, cache entries) is ignored.
+     *
+     * @return The number of files deleted.
+     */
+    public int release(Collection<String> uris) {
+        int count = 0;
+        for (String uri : uris) {
+            String path = Uri.parse(uri).getPath();
+            if (path == null) {
+                continue;
+            }
+            File file = new File(path);
+            if (isInStore(file) && file.delete()) {
+                count++;
+                File dir = file.getParentFile();
+                String[] remaining = dir.list();
+                if (remaining != null && remaining.length == 1 && COMPLETE_MARKER.equals(remaining[0])) {
+                    new File(dir, COMPLETE_MARKER).delete();
+                    dir.delete();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes the sessions left over by a previous process that died while exporting, then
+     * applies the age and size limits. Runs in the background.
+     */
+    public void cleanupAsync() {
+        executor.execute(new Runnable() {
+            public void run() {
+                File[] sessions = root.listFiles();
+                if (sessions != null) {
+                    for (File dir : sessions) {
+                        if (!liveSessions.contains(dir) && !new File(dir, COMPLETE_MARKER).exists()) {
+                            Log.d(LOG_TAG, "Removing orphaned session " + dir.getName());
+                            deleteDirectory(dir);
+                        }
+                    }
+                }
+                trim();
+            }
+        });
+    }
+
+    public void trimAsync() {
+        executor.execute(new Runnable() {
+            public void run() {
+                trim();
+            }
+        });
+    }
+
+    private void trim() {
+        long maxBytes = preferences.getLong(PREF_MAX_BYTES, DEFAULT_MAX_BYTES);
+        long maxAge = getMaxAge();
+        long now = System.currentTimeMillis();
+
+        List<File> files = new ArrayList<File>();
+        long size = 0;
+        File[] sessions = root.listFiles();
+        if (sessions == null) {
+            return;
+        }
+        for (File dir : sessions) {
+            if (!new File(dir, COMPLETE_MARKER).exists()) {
+                // Still being written.
+                continue;
+            }
+            File[] results = dir.listFiles();
+            if (results == null) {
+                continue;
+            }
+            for (File file : results) {
+                if (file.getName().equals(COMPLETE_MARKER)) {
+                    continue;
+                }
+                if (now - file.lastModified() > maxAge) {
+                    file.delete();
+                } else {
+                    files.add(file);
+                    size += file.length();
+                }
+            }
+        }
+
+        if (size > maxBytes) {
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified();
+                    long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < files.size() && size > maxBytes; i++) {
+                long length = files.get(i).length();
+                if (files.get(i).delete()) {
+                    size -= length;
+                }
+            }
+        }
+
+        // Drop the sessions that have nothing left in them.
+        for (File dir : sessions) {
+            String[] remaining = dir.list();
+            if (remaining != null && remaining.length == 1 && COMPLETE_MARKER.equals(remaining[0])) {
+                deleteDirectory(dir);
+            }
+        }
+    }
+
+    private boolean isInStore(File file) {
+        try {
+            return file.getCanonicalPath().startsWith(root.getCanonicalPath() + File.separator);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * The output directory of one export.
+     */
+    public class Session {
+        private final File dir;
+
+        private Session(File dir) {
+            this.dir = dir;
+        }
+
+        public String getName() {
+            return dir.getName();
+        }
+
+        /**
+         * @return A new file named after the source file, made unique within the session. The
+         * file is created empty, so exports running at the same time never get the same name.
+         */
+        public File createFile(String fileName) throws IOException {
+            File file = new File(dir, fileName);
+            int index = fileName.lastIndexOf('.');
+            String name = index >= 0 ? fileName.substring(0, index) : fileName;
+            String ext = index >= 0 ? fileName.substring(index) : "";
+            for (int i = 1; !file.createNewFile(); i++) {
+                file = new File(dir, name + "-" + i + ext);
+            }
+            return file;
+        }
+
+        /**
+         * Marks the session's files as handed back to the app.
+         */
+        public void complete() {
+            try {
+                new File(dir, COMPLETE_MARKER).createNewFile();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to complete session " + dir.getName() + ": " + e.getMessage());
+            }
+            liveSessions.remove(dir);
+            trimAsync();
+        }
+
+        /**
+         * Deletes the session and everything written to it.
+         */
+        public void abort() {
+            deleteDirectory(dir);
+            liveSessions.remove(dir);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.synconset;
+
+import java.io.IOException;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+/**
+ * Does ahead of time what the picker would otherwise do while opening: the gallery query, the
+ * thumbnails of the first screen, which go to the ThumbnailCache, and the BucketIndex. The picker takes the first
+ * screen over when it opens, and still queries the gallery to get all the rest.
+ * <p/>
+ * The first screen is forgotten as soon as the gallery changes, the picker then starts cold.
+ */
+public class PickerWarmUp {
+    private static final String LOG_TAG = "PickerWarmUp";
+    private static final String[] PROJECTION = new String[] {
+        MediaStore.Images.Media._ID,
+        MediaStore.Images.Media.ORIENTATION,
+        MediaStore.Images.Media.DATA
+    };
+    // Resources of the picker, resolved once so FakeR keeps them.
+    private static final String[][] RESOURCES = new String[][] {
+        { "layout", "multiselectorgrid" },
+        { "layout", "actionbar_custom_view_done_discard" },
+        { "id", "gridview" },
+        { "id", "actionbar_done" },
+        { "id", "actionbar_done_textview" },
+        { "id", "actionbar_discard" }
+    };
+
+    /**
+     * The first screen of the picker as it was warmed up.
+     */
+    public static class FirstScreen {
+        public final int[] ids;
+        public final int[] orientations;
+
+        FirstScreen(int count) {
+            ids = new int[count];
+            orientations = new int[count];
+        }
+    }
+
+    private static PickerWarmUp instance;
+
+    private FirstScreen firstScreen;
+    // The gallery generation the first screen was queried at.
+    private int firstScreenGeneration;
+
+    public static synchronized PickerWarmUp getInstance() {
+        if (instance == null) {
+            instance = new PickerWarmUp();
+        }
+        return instance;
+    }
+
+    /**
+     * Queries the gallery and loads the thumbnails of the first screen. Blocks, to be called from
+     * a background thread while the app is idle.
+     *
+     * @return The number of thumbnails ready.
+     */
+    public int warmUp(Context context) {
+        long start = System.currentTimeMillis();
+        ContentResolver contentResolver = context.getContentResolver();
+        GalleryObserver gallery = GalleryObserver.getInstance();
+        int queriedGeneration = gallery.observe(context);
+        FakeR fakeR = new FakeR(context);
+        for (String[] resource : RESOURCES) {
+            fakeR.getId(resource[0], resource[1]);
+        }
+
+        // The picker grid starts with the columns of the current orientation.
+        int columns = context.getResources().getInteger(fakeR.getId("integer", "grid_cols"));
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        int colWidth = metrics.widthPixels / columns;
+        int count = columns * (metrics.heightPixels / colWidth + 1);
+        String[] paths = new String[count];
+        FirstScreen screen;
+        Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, null, null,
+                "DATE_MODIFIED DESC");
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            screen = new FirstScreen(Math.min(count, cursor.getCount()));
+            for (int i = 0; i < screen.ids.length && cursor.moveToNext(); i++) {
+                screen.ids[i] = cursor.getInt(0);
+                screen.orientations[i] = cursor.getInt(1);
+                paths[i] = cursor.getString(2);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        PreviewIndex previews = PreviewIndex.getInstance(context);
+        int ready = 0;
+        for (int i = 0; i < screen.ids.length; i++) {
+            if (cache.get(screen.ids[i]) != null) {
+                ready++;
+                continue;
+            }
+            if (paths[i] == null) {
+                continue;
+            }
+            Uri uri = Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, Integer.toString(screen.ids[i]));
+            try {
+                Bitmap bitmap = ImageFetcher.loadThumbnail(contentResolver, uri, paths[i], screen.orientations[i]);
+                if (bitmap != null) {
+                    cache.put(screen.ids[i], bitmap, true);
+                    previews.put(screen.ids[i], bitmap);
+                    ready++;
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "No thumbnail for " + paths[i] + ": " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (gallery.getGeneration() != queriedGeneration) {
+                return 0;
+            }
+            firstScreen = screen;
+            firstScreenGeneration = queriedGeneration;
+        }
+        BucketIndex.getInstance().getBuckets(context);
+        Log.d(LOG_TAG, ready + " thumbnails warmed up in " + (System.currentTimeMillis() - start) + " ms");
+        return ready;
+    }
+
+    /**
+     * @return The first screen if it was warmed up and the gallery didn't change since, null
+     * otherwise. It is handed over, a second call returns null.
+     */
+    public synchronized FirstScreen take() {
+        FirstScreen screen = firstScreen;
+        firstScreen = null;
+        if (screen == null || firstScreenGeneration != GalleryObserver.getInstance().getGeneration()) {
+            return null;
+        }
+        return screen;
+    }
+}
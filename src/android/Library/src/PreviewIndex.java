@@ -0,0 +1,191 @@
+package com.synconset;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/**
+ * The average color of every image a thumbnail was made for, by image id, shown in place of the
+ * thumbnail while it loads. At 8 bytes an image in memory it covers the whole gallery.
+ * <p/>
+ * The index is kept in a file of the cache directory, loaded in the background the first time
+ * it's used and saved a few seconds after it changes.
+ */
+public class PreviewIndex {
+    private static final String LOG_TAG = "PreviewIndex";
+    private static final String FILE_NAME = "imagepicker-previews";
+    private static final int VERSION = 1;
+    private static final long SAVE_DELAY = 5; // in seconds
+    // Pixels averaged each way.
+    private static final int SAMPLES = 8;
+
+    private static PreviewIndex instance;
+
+    private final File file;
+    private final SparseIntArray colors = new SparseIntArray();
+    private boolean saveScheduled;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final Runnable saver = new Runnable() {
+        public void run() {
+            save();
+        }
+    };
+
+    public static synchronized PreviewIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new PreviewIndex(new File(context.getCacheDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    private PreviewIndex(File file) {
+        this.file = file;
+        executor.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return The color of the image, 0 if it isn't known yet.
+     */
+    public synchronized int getColor(int id) {
+        return colors.get(id, 0);
+    }
+
+    public synchronized boolean contains(int id) {
+        return colors.indexOfKey(id) >= 0;
+    }
+
+    /**
+     * Records the color of the image from its thumbnail, unless it's known already.
+     */
+    public void put(int id, Bitmap thumbnail) {
+        if (thumbnail == null || contains(id)) {
+            return;
+        }
+        int color = getAverageColor(thumbnail);
+        synchronized (this) {
+            colors.put(id, color);
+            if (!saveScheduled) {
+                saveScheduled = true;
+                executor.schedule(saver, SAVE_DELAY, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return The average of a grid of pixels, opaque.
+     */
+    static int getAverageColor(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int y = 0; y < SAMPLES; y++) {
+            for (int x = 0; x < SAMPLES; x++) {
+                int pixel = bitmap.getPixel((2 * x + 1) * width / (2 * SAMPLES), (2 * y + 1) * height / (2 * SAMPLES));
+                red += Color.red(pixel);
+                green += Color.green(pixel);
+                blue += Color.blue(pixel);
+            }
+        }
+        int count = SAMPLES * SAMPLES;
+        return Color.rgb((int) (red / count), (int) (green / count), (int) (blue / count));
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                int color = in.readInt();
+                synchronized (this) {
+                    // Colors recorded while loading are newer.
+                    if (colors.indexOfKey(id) < 0) {
+                        colors.put(id, color);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            Log.w(LOG_TAG, "Truncated index, keeping what was read");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the index: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private void save() {
+        int[] ids;
+        int[] values;
+        synchronized (this) {
+            saveScheduled = false;
+            ids = new int[colors.size()];
+            values = new int[colors.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = colors.keyAt(i);
+                values[i] = colors.valueAt(i);
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                out.writeInt(values[i]);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not save the index: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.synconset;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A picked image, as read from the MediaStore row it was selected from.
+ */
+public class SelectedImage {
+    public final String path;
+    public final long id;
+    public final int rotation;
+    public final long dateModified;
+    public final long size;
+    // DATE_TAKEN, in milliseconds, 0 when unknown.
+    public final long dateTaken;
+
+    public SelectedImage(String path, long id, int rotation, long dateModified, long size, long dateTaken) {
+        this.path = path;
+        this.id = id;
+        this.rotation = rotation;
+        this.dateModified = dateModified;
+        this.size = size;
+        this.dateTaken = dateTaken;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("path", path);
+        json.put("id", id);
+        json.put("rotation", rotation);
+        json.put("dateModified", dateModified);
+        json.put("size", size);
+        json.put("dateTaken", dateTaken);
+        return json;
+    }
+
+    public static SelectedImage fromJSON(JSONObject json) throws JSONException {
+        return new SelectedImage(json.getString("path"), json.getLong("id"), json.optInt("rotation", 0),
+                json.optLong("dateModified", 0), json.optLong("size", 0), json.optLong("dateTaken", 0));
+    }
+}
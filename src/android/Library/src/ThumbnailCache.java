@@ -0,0 +1,352 @@
+package com.synconset;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The thumbnails of the gallery by image id and level of detail, kept for the whole process so a picker opened
+ * again finds the ones it showed before. Shared by every thumbnail consumer: the picker grid,
+ * warmUp and the thumbnail URLs.
+ * <p/>
+ * The least recently used thumbnails go past a byte budget, and when nothing used the cache for
+ * a while it is trimmed down to a quarter of the budget.
+ * <p/>
+ * It also gives memory back as the system asks for it, a step at a time: first the thumbnails
+ * loaded ahead of time and not shown yet, then all but the ones on screen, then everything.
+ * <p/>
+ * Lookups don't lock, so the UI thread never waits for the decoding threads. The thumbnails are
+ * found in a concurrent map and each hit is only noted in a buffer. The LRU order is kept under
+ * a lock, the buffered hits are applied to it by whoever holds the lock next: a put, a trim, or
+ * a lookup that finds it free once enough hits are buffered.
+ * <p/>
+ * An image can have a thumbnail at each of the levels of ImageFetcher. The methods without a
+ * level are for the medium one, the thumbnail files.
+ */
+public class ThumbnailCache implements ComponentCallbacks2 {
+    private static final String LOG_TAG = "ThumbnailCache";
+    // An eighth of the heap, the usual share for a bitmap cache.
+    private static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    private static final long IDLE_DELAY = 60 * 1000; // in milliseconds
+    private static final int IDLE_FRACTION = 4;
+    // Hits buffered before a lookup tries to apply them.
+    private static final int DRAIN_THRESHOLD = 32;
+    // Hits past this many are dropped, the order is then only a little less exact.
+    private static final int MAX_BUFFERED_HITS = 1024;
+
+    private static ThumbnailCache instance;
+
+    // By key, see key.
+    private final ConcurrentHashMap<Long, Bitmap> bitmaps = new ConcurrentHashMap<Long, Bitmap>();
+    // Least recently used first. Guarded by lock, as are the changes to bitmaps and size.
+    private final LinkedHashMap<Long, Bitmap> order = new LinkedHashMap<Long, Bitmap>(64, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    // Hits not applied to the order yet.
+    private final ConcurrentLinkedQueue<Long> hits = new ConcurrentLinkedQueue<Long>();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    // Loaded ahead of time and not shown yet, by key.
+    private final Set<Long> prefetched = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    // Ids of the images on screen right now, see setVisible.
+    private volatile Set<Integer> visible = new HashSet<Integer>();
+    private boolean registered;
+    private final long maxBytes;
+    private volatile long size;
+    private volatile long lastAccess;
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Runnable idleTrimmer = new Runnable() {
+        public void run() {
+            long idle = SystemClock.uptimeMillis() - lastAccess;
+            if (idle < IDLE_DELAY) {
+                // Used since it was scheduled, checks again once it's been idle long enough.
+                handler.postDelayed(this, IDLE_DELAY - idle);
+                return;
+            }
+            trimScheduled.set(false);
+            trimToSize(maxBytes / IDLE_FRACTION);
+        }
+    };
+
+    public static synchronized ThumbnailCache getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailCache(DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Hooks the cache to the memory callbacks of the system, once for the process.
+     */
+    public synchronized void register(Context context) {
+        if (!registered) {
+            context.getApplicationContext().registerComponentCallbacks(this);
+            registered = true;
+        }
+    }
+
+    public Bitmap get(int id) {
+        return get(id, ImageFetcher.LEVEL_MEDIUM);
+    }
+
+    /**
+     * @return The thumbnail of the image at that level, or null if it isn't cached. Never blocks.
+     */
+    public Bitmap get(int id, int level) {
+        touch();
+        Long key = key(id, level);
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap != null) {
+            prefetched.remove(key);
+            recordHit(key);
+        }
+        return bitmap;
+    }
+
+    public boolean contains(int id) {
+        return contains(id, ImageFetcher.LEVEL_MEDIUM);
+    }
+
+    /**
+     * @return true if the thumbnail of the image is cached at that level. Doesn't count as a use.
+     */
+    public boolean contains(int id, int level) {
+        return bitmaps.containsKey(key(id, level));
+    }
+
+    public void put(int id, Bitmap bitmap) {
+        put(id, ImageFetcher.LEVEL_MEDIUM, bitmap, false);
+    }
+
+    public void put(int id, Bitmap bitmap, boolean prefetched) {
+        put(id, ImageFetcher.LEVEL_MEDIUM, bitmap, prefetched);
+    }
+
+    /**
+     * @param prefetched true for a thumbnail loaded before anything asked for it, the first to go
+     *                   when memory gets low.
+     */
+    public void put(int id, int level, Bitmap bitmap, boolean prefetched) {
+        if (bitmap == null) {
+            return;
+        }
+        touch();
+        Long key = key(id, level);
+        lock.lock();
+        try {
+            drainHits();
+            if (prefetched) {
+                this.prefetched.add(key);
+            } else {
+                this.prefetched.remove(key);
+            }
+            Bitmap previous = order.put(key, bitmap);
+            bitmaps.put(key, bitmap);
+            if (previous != null) {
+                size -= getByteCount(previous);
+            }
+            size += getByteCount(bitmap);
+            trimLocked(maxBytes, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            drainHits();
+            order.clear();
+            bitmaps.clear();
+            prefetched.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param ids The images on screen, kept at every level when memory gets low.
+     */
+    public void setVisible(Collection<Integer> ids) {
+        visible = new HashSet<Integer>(ids);
+    }
+
+    /**
+     * Makes sure a decode of the given size has room, giving memory back first if the heap is
+     * close to full. Called before decoding rather than waiting for an OutOfMemoryError.
+     */
+    public void ensureRoom(long bytes) {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // Twice the size, decoding and rotating briefly hold two copies.
+        if (available < 2 * bytes) {
+            trimToVisible();
+        }
+    }
+
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+            // The thumbnails waiting to be written would be skipped anyway, lets go of them now.
+            ThumbnailWriter.getInstance().dropPending();
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_UI_HIDDEN) {
+            trimToVisible();
+        } else {
+            // TRIM_MEMORY_RUNNING_MODERATE and TRIM_MEMORY_BACKGROUND.
+            dropPrefetched();
+        }
+        Log.d(LOG_TAG, "Trimmed to " + getSize() + " bytes for level " + level);
+    }
+
+    public void onLowMemory() {
+        clear();
+        ThumbnailWriter.getInstance().dropPending();
+    }
+
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Drops the thumbnails loaded ahead of time that nothing used yet.
+     */
+    public void dropPrefetched() {
+        lock.lock();
+        try {
+            for (Long key : prefetched) {
+                Bitmap bitmap = order.remove(key);
+                if (bitmap != null) {
+                    bitmaps.remove(key);
+                    size -= getByteCount(bitmap);
+                }
+            }
+            prefetched.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all the thumbnails but the ones on screen.
+     */
+    public void trimToVisible() {
+        lock.lock();
+        try {
+            drainHits();
+            trimLocked(0, visible);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Drops the least recently used thumbnails until the cache fits in maxSize.
+     */
+    public void trimToSize(long maxSize) {
+        lock.lock();
+        try {
+            drainHits();
+            trimLocked(maxSize, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the least recently used thumbnails, but the ones of the kept images, until the cache
+     * fits in maxSize. Called with the lock held.
+     */
+    private void trimLocked(long maxSize, Set<Integer> kept) {
+        Iterator<Map.Entry<Long, Bitmap>> iterator = order.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<Long, Bitmap> entry = iterator.next();
+            if (kept != null && kept.contains(idOf(entry.getKey()))) {
+                continue;
+            }
+            size -= getByteCount(entry.getValue());
+            bitmaps.remove(entry.getKey());
+            prefetched.remove(entry.getKey());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Notes a hit for the LRU order, applying the buffered ones if the lock is free and enough
+     * of them piled up. Never waits for the lock.
+     */
+    private void recordHit(Long key) {
+        if (hitCount.get() >= MAX_BUFFERED_HITS) {
+            return;
+        }
+        hits.offer(key);
+        if (hitCount.incrementAndGet() >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainHits();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the buffered hits to the LRU order. Called with the lock held.
+     */
+    private void drainHits() {
+        Long key;
+        while ((key = hits.poll()) != null) {
+            hitCount.decrementAndGet();
+            // An access-ordered get moves the entry to the most recent end, skips keys gone since.
+            order.get(key);
+        }
+    }
+
+    private static Long key(int id, int level) {
+        return Long.valueOf(((long) id << 2) | level);
+    }
+
+    private static int idOf(Long key) {
+        return (int) (key.longValue() >> 2);
+    }
+
+    private void touch() {
+        lastAccess = SystemClock.uptimeMillis();
+        if (trimScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(idleTrimmer, IDLE_DELAY);
+        }
+    }
+
+    private static long getByteCount(Bitmap bitmap) {
+        // getByteCount needs API 12.
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
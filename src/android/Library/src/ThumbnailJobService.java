@@ -0,0 +1,219 @@
+package com.synconset;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Makes the thumbnail files of the whole gallery while the device is idle and charging, newest
+ * first like the picker grid, so that the picker finds them on disk the first time it's opened.
+ * <p/>
+ * The walk goes a page at a time and saves where it is after each page, a job stopped by the
+ * system carries on from there the next time. It goes slowly on purpose, and stops for now when
+ * the device gets hot, goes into power saving or decodes get slow, meaning something else needs
+ * the CPU. Needs Android 5.0, enabled from the app with setThumbnailPregeneration.
+ */
+@TargetApi(21)
+public class ThumbnailJobService extends JobService {
+    private static final String LOG_TAG = "ThumbnailJobService";
+    private static final int JOB_ID = 0x1a6e;
+    private static final String PREFERENCES_NAME = "imagepicker";
+    private static final String PREF_ENABLED = "thumbnailJobEnabled";
+    private static final String PREF_AFTER_DATE = "thumbnailJobAfterDate";
+    private static final String PREF_AFTER_ID = "thumbnailJobAfterId";
+    private static final int PAGE_SIZE = 100;
+    // At most a thumbnail every 100 ms.
+    private static final long MIN_ITEM_INTERVAL = 100;
+    // A thumbnail taking longer than this means the CPU is busy with something else.
+    private static final long SLOW_ITEM_TIME = 1000;
+    private static final String[] PROJECTION = new String[] {
+        MediaStore.Images.Media._ID,
+        MediaStore.Images.Media.DATE_MODIFIED,
+        MediaStore.Images.Media.DATA,
+        MediaStore.Images.Media.ORIENTATION
+    };
+
+    // Set by the system, see onStopJob.
+    private volatile boolean stopped;
+    // Set when the thumbnails get slow.
+    private boolean busy;
+
+    /**
+     * Turns the pre-generation on or off for this app, it stays so across restarts.
+     */
+    public static void setEnabled(Context context, boolean enabled) {
+        getPreferences(context).edit().putBoolean(PREF_ENABLED, enabled).commit();
+        if (Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+        if (enabled) {
+            schedule(context);
+        } else {
+            ((JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE)).cancel(JOB_ID);
+        }
+    }
+
+    /**
+     * Schedules the job if it's enabled. Called as the app starts, to pick up the new pictures.
+     */
+    public static void scheduleIfEnabled(Context context) {
+        if (Build.VERSION.SDK_INT >= 21 && getPreferences(context).getBoolean(PREF_ENABLED, false)) {
+            schedule(context);
+        }
+    }
+
+    private static void schedule(Context context) {
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, ThumbnailJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build();
+        ((JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE)).schedule(job);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        stopped = false;
+        busy = false;
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+                boolean done = false;
+                try {
+                    done = generate();
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, "Thumbnail generation failed: " + e.getMessage());
+                }
+                if (!stopped) {
+                    // Not done, the job is retried later with the scheduler's back-off.
+                    jobFinished(params, !done);
+                }
+            }
+        }, "ImagePicker-pregenerate");
+        worker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Idle or charging ended, the checkpoint lets the next run carry on.
+        stopped = true;
+        return true;
+    }
+
+    /**
+     * @return true once the whole gallery is done, false if it stopped before.
+     */
+    private boolean generate() {
+        SharedPreferences preferences = getPreferences(this);
+        ContentResolver contentResolver = getContentResolver();
+        long afterDate = preferences.getLong(PREF_AFTER_DATE, -1);
+        long afterId = preferences.getLong(PREF_AFTER_ID, -1);
+        int count = 0;
+        while (true) {
+            String selection = null;
+            String[] args = null;
+            if (afterDate >= 0) {
+                selection = MediaQuery.AFTER_SELECTION;
+                args = new String[] { String.valueOf(afterDate), String.valueOf(afterDate), String.valueOf(afterId) };
+            }
+            Cursor cursor = MediaQuery.query(contentResolver, PROJECTION, selection, args, PAGE_SIZE);
+            if (cursor == null) {
+                return false;
+            }
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    if (shouldStop()) {
+                        return false;
+                    }
+                    rows++;
+                    long id = cursor.getLong(0);
+                    String filePath = cursor.getString(2);
+                    if (filePath != null && generate(contentResolver, id, filePath, cursor.getInt(3))) {
+                        count++;
+                    }
+                    afterDate = cursor.getLong(1);
+                    afterId = id;
+                }
+            } finally {
+                cursor.close();
+                preferences.edit().putLong(PREF_AFTER_DATE, afterDate).putLong(PREF_AFTER_ID, afterId).commit();
+            }
+            if (rows < PAGE_SIZE) {
+                // The next run starts again from the newest pictures, the ones done are skipped quickly.
+                preferences.edit().remove(PREF_AFTER_DATE).remove(PREF_AFTER_ID).commit();
+                Log.d(LOG_TAG, count + " thumbnails generated, gallery done");
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if a thumbnail was made, false if there was one already or it failed.
+     */
+    private boolean generate(ContentResolver contentResolver, long id, String filePath, int rotate) {
+        File thumbnailFile = ImageFetcher.getThumbnailFile(filePath);
+        if (thumbnailFile == null || thumbnailFile.exists()) {
+            return false;
+        }
+        long start = SystemClock.uptimeMillis();
+        Uri uri = Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, Long.toString(id));
+        try {
+            Bitmap bitmap = ImageFetcher.decodeThumbnail(contentResolver, uri,
+                    ImageFetcher.decodeBounds(contentResolver, uri), ImageFetcher.THUMBNAIL_SIZE, rotate);
+            if (bitmap == null) {
+                return false;
+            }
+            ImageFetcher.writeThumbnail(bitmap, filePath, thumbnailFile);
+            PreviewIndex.getInstance(this).put((int) id, bitmap);
+            bitmap.recycle();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "No thumbnail for " + filePath + ": " + e.getMessage());
+            return false;
+        }
+        long time = SystemClock.uptimeMillis() - start;
+        if (time > SLOW_ITEM_TIME) {
+            Log.d(LOG_TAG, "Thumbnail took " + time + " ms, stopping for now");
+            busy = true;
+        } else if (time < MIN_ITEM_INTERVAL) {
+            SystemClock.sleep(MIN_ITEM_INTERVAL - time);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the device is too hot or saving power to go on.
+     */
+    private boolean shouldStop() {
+        if (stopped || busy) {
+            return true;
+        }
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager.isPowerSaveMode()) {
+            return true;
+        }
+        return Build.VERSION.SDK_INT >= 29
+                && powerManager.getCurrentThermalStatus() >= PowerManager.THERMAL_STATUS_MODERATE;
+    }
+}
@@ -0,0 +1,110 @@
+package com.synconset;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.cordova.CordovaResourceApi;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+/**
+ * Serves the thumbnails of the gallery to the WebView as imagepicker-thumb://&lt;id&gt;?size=&lt;px&gt;
+ * URLs, so that an HTML grid loads them like any other image instead of through the exec bridge.
+ * <p/>
+ * Thumbnails up to the size of the picker ones are the picker thumbnail files, streamed as they
+ * are and made first when missing. Larger ones are decoded on demand and not kept.
+ */
+public class ThumbnailServer {
+    public static final String SCHEME = "imagepicker-thumb";
+    private static final int MAX_SIZE = 2048;
+    private static final String[] PROJECTION = new String[] {
+        MediaStore.Images.Media.DATA,
+        MediaStore.Images.Media.ORIENTATION
+    };
+
+    private final ContentResolver contentResolver;
+    private final PreviewIndex previews;
+
+    public ThumbnailServer(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.previews = PreviewIndex.getInstance(context);
+    }
+
+    public static boolean handles(Uri uri) {
+        return SCHEME.equals(uri.getScheme());
+    }
+
+    /**
+     * Called by the WebView threads, several at a time.
+     *
+     * @param uri imagepicker-thumb://&lt;id&gt;?size=&lt;px&gt;, size defaulting to the picker one.
+     */
+    public CordovaResourceApi.OpenForReadResult open(Uri uri) throws IOException {
+        int id;
+        int size;
+        try {
+            id = Integer.parseInt(uri.getHost());
+            String sizeParam = uri.getQueryParameter("size");
+            size = sizeParam != null ? Integer.parseInt(sizeParam) : ImageFetcher.THUMBNAIL_SIZE;
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("Invalid thumbnail URL: " + uri);
+        }
+        size = Math.max(1, Math.min(MAX_SIZE, size));
+
+        Uri imageUri = Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, Integer.toString(id));
+        String filePath = null;
+        int rotate = 0;
+        Cursor cursor = contentResolver.query(imageUri, PROJECTION, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    filePath = cursor.getString(0);
+                    rotate = cursor.getInt(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (filePath == null) {
+            throw new FileNotFoundException("No image " + id);
+        }
+        String mimeType = filePath.toLowerCase().endsWith(".png") ? "image/png" : "image/jpeg";
+
+        File thumbnailFile = size <= ImageFetcher.THUMBNAIL_SIZE ? ImageFetcher.getThumbnailFile(filePath) : null;
+        if (thumbnailFile != null) {
+            if (thumbnailFile.length() == 0) {
+                Bitmap bitmap = decode(imageUri, ImageFetcher.THUMBNAIL_SIZE, rotate);
+                ImageFetcher.writeThumbnail(bitmap, filePath, thumbnailFile);
+                ThumbnailCache.getInstance().put(id, bitmap);
+                previews.put(id, bitmap);
+            }
+            // The file is only ever replaced, never rewritten, so it can be streamed as it is.
+            FileInputStream stream = new FileInputStream(thumbnailFile);
+            return new CordovaResourceApi.OpenForReadResult(uri, stream, mimeType, stream.getChannel().size(), null);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageFetcher.compressThumbnail(decode(imageUri, size, rotate), filePath, out);
+        return new CordovaResourceApi.OpenForReadResult(uri, new ByteArrayInputStream(out.toByteArray()), mimeType,
+                out.size(), null);
+    }
+
+    private Bitmap decode(Uri imageUri, int size, int rotate) throws IOException {
+        BitmapFactory.Options bounds = ImageFetcher.decodeBounds(contentResolver, imageUri);
+        Bitmap bitmap = ImageFetcher.decodeThumbnail(contentResolver, imageUri, bounds, size, rotate);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + imageUri);
+        }
+        return bitmap;
+    }
+}
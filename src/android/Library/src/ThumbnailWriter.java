@@ -0,0 +1,100 @@
+package com.synconset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Writes the thumbnail files made by the picker behind its back, so a new thumbnail is shown
+ * as soon as it's decoded rather than once it's encoded and written.
+ * <p/>
+ * Writes are queued by file, a thumbnail queued twice is written once, and done a batch at a
+ * time by a single background thread. A thumbnail that left the ThumbnailCache before its turn
+ * isn't written, it's made again the next time it's needed.
+ */
+public class ThumbnailWriter {
+    private static final String LOG_TAG = "ThumbnailWriter";
+
+    private static ThumbnailWriter instance;
+
+    private static class PendingWrite {
+        final int id;
+        final int level;
+        final Bitmap bitmap;
+        final String filePath;
+        final File thumbnailFile;
+
+        PendingWrite(int id, int level, Bitmap bitmap, String filePath, File thumbnailFile) {
+            this.id = id;
+            this.level = level;
+            this.bitmap = bitmap;
+            this.filePath = filePath;
+            this.thumbnailFile = thumbnailFile;
+        }
+    }
+
+    // By thumbnail file, in the order queued.
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+    private boolean scheduled;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new BackgroundThreadFactory("ImagePicker-thumbnails"));
+
+    private final Runnable writer = new Runnable() {
+        public void run() {
+            List<PendingWrite> batch;
+            synchronized (ThumbnailWriter.this) {
+                batch = new ArrayList<PendingWrite>(pending.values());
+                pending.clear();
+                scheduled = false;
+            }
+            ThumbnailCache cache = ThumbnailCache.getInstance();
+            for (PendingWrite write : batch) {
+                if (!cache.contains(write.id, write.level)) {
+                    continue;
+                }
+                try {
+                    ImageFetcher.writeThumbnail(write.bitmap, write.filePath, write.thumbnailFile);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not write " + write.thumbnailFile + ": " + e.getMessage());
+                }
+            }
+        }
+    };
+
+    public static synchronized ThumbnailWriter getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailWriter();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the thumbnail of an image to be written. It should be in the ThumbnailCache already.
+     *
+     * @param level The level the image is cached at, the bitmap written can be a finer one.
+     * @param filePath Path of the image.
+     * @param thumbnailFile Where the thumbnail goes, from ImageFetcher.getThumbnailFile.
+     */
+    public synchronized void write(int id, int level, Bitmap bitmap, String filePath, File thumbnailFile) {
+        pending.put(thumbnailFile.getPath(), new PendingWrite(id, level, bitmap, filePath, thumbnailFile));
+        if (!scheduled) {
+            scheduled = true;
+            executor.execute(writer);
+        }
+    }
+
+    /**
+     * Forgets the writes not done yet, letting go of their bitmaps.
+     */
+    public synchronized void dropPending() {
+        pending.clear();
+    }
+}
@@ -13,6 +13,8 @@ Code taken from: https://github.com/wildabeast/BarcodeScanner
 */
 package com.synconset;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import android.app.Activity;
 import android.content.Context;
 
@@ -25,6 +27,9 @@ import android.content.Context;
  * @author Maciej Nux Jaros
  */
 public class FakeR {
+	// getIdentifier looks the name up every time, the ids don't change while the app runs.
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
 	private Context context;
 	private String packageName;
 
@@ -39,10 +44,16 @@ public class FakeR {
 	}
 
 	public int getId(String group, String key) {
-		return context.getResources().getIdentifier(key, group, packageName);
+		return getId(context, group, key);
 	}
 
 	public static int getId(Context context, String group, String key) {
-		return context.getResources().getIdentifier(key, group, context.getPackageName());
+		String name = group + "/" + key;
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = context.getResources().getIdentifier(key, group, context.getPackageName());
+			ids.put(name, id);
+		}
+		return id;
 	}
 }
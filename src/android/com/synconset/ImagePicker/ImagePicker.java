@@ -4,79 +4,568 @@
 package com.synconset;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaResourceApi;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
 public class ImagePicker extends CordovaPlugin {
 	public static String TAG = "ImagePicker";
+	private static final int RESULTS_CHUNK_SIZE = 500;
+	private static final int PROCESS_BATCH_SIZE = 50;
 	 
-	private CallbackContext callbackContext;
-	private JSONObject params;
-	 
+	// The callback of each open picker by request code. Only used on the UI thread.
+	private final Map<Integer, CallbackContext> pickers = new HashMap<Integer, CallbackContext>();
+	private int nextRequestCode;
+	// The callback restored for a picker opened before the app was killed.
+	private CallbackContext restoredCallbackContext;
+	private ThumbnailServer thumbnailServer;
+
+	@Override
+	public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+		super.initialize(cordova, webView);
+		// Starts resuming the jobs a previous process didn't finish, in the background.
+		final ExportQueue queue = ExportQueue.getInstance(cordova.getActivity());
+		thumbnailServer = new ThumbnailServer(cordova.getActivity());
+		ThumbnailCache.getInstance().register(cordova.getActivity());
+		final Context context = cordova.getActivity().getApplicationContext();
+		cordova.getThreadPool().execute(new Runnable() {
+			public void run() {
+				// Results of an export interrupted by a crash are never going to be delivered. The
+				// resumed jobs must be known first, or their output is taken for such leftovers.
+				queue.awaitLoaded();
+				OutputStore.getInstance(context).cleanupAsync();
+				// Takes in the pictures added since the last time, if the app enabled it.
+				ThumbnailJobService.scheduleIfEnabled(context);
+			}
+		});
+	}
+
+	// imagepicker-thumb:// URLs are read through the plugin, on the WebView threads.
+	public Uri remapUri(Uri uri) {
+		return ThumbnailServer.handles(uri) ? toPluginUri(uri) : null;
+	}
+
+	public CordovaResourceApi.OpenForReadResult handleOpenForRead(Uri uri) throws IOException {
+		return thumbnailServer.open(fromPluginUri(uri));
+	}
+
+	public Boolean shouldAllowRequest(String url) {
+		return url.startsWith(ThumbnailServer.SCHEME + ":") ? Boolean.TRUE : null;
+	}
+
+	// Cordova 5.1 and later: if the app is killed while the picker is open, the result comes
+	// back to a new instance of the plugin with the restored callback.
+	public Bundle onSaveInstanceState() {
+		return new Bundle();
+	}
+
+	public void onRestoreStateForActivityResult(Bundle state, CallbackContext callbackContext) {
+		this.restoredCallbackContext = callbackContext;
+	}
+
+	/**
+	 * Every call only works with its own arguments and callback, and anything more than reading
+	 * them runs on the thread pool, so calls can overlap without one answering another's callback.
+	 */
 	public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
-		 this.callbackContext = callbackContext;
-		 this.params = args.getJSONObject(0);
+		if (action.equals("getCacheStats")) {
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					try {
+						ExportCache cache = ExportCache.getInstance(cordova.getActivity());
+						JSONObject stats = new JSONObject();
+						stats.put("hits", cache.getHits());
+						stats.put("misses", cache.getMisses());
+						stats.put("entries", cache.getCount());
+						stats.put("bytes", cache.getSize());
+						stats.put("maxBytes", cache.getMaxBytes());
+						callbackContext.success(stats);
+					} catch (JSONException e) {
+						callbackContext.error(e.getMessage());
+					}
+				}
+			});
+			return true;
+		} else if (action.equals("releaseResults")) {
+			final JSONArray uris = args.getJSONArray(0);
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					ArrayList<String> list = new ArrayList<String>();
+					for (int i = 0; i < uris.length(); i++) {
+						list.add(uris.optString(i));
+					}
+					int count = OutputStore.getInstance(cordova.getActivity()).release(list);
+					callbackContext.success(count);
+				}
+			});
+			return true;
+		} else if (action.equals("setOutputLimits")) {
+			final JSONObject limits = args.getJSONObject(0);
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					OutputStore.getInstance(cordova.getActivity()).setLimits(
+							limits.optLong("maxBytes", OutputStore.DEFAULT_MAX_BYTES),
+							limits.optLong("maxAge", OutputStore.DEFAULT_MAX_AGE));
+					callbackContext.success();
+				}
+			});
+			return true;
+		} else if (action.equals("processImages")) {
+			final JSONArray items = args.getJSONArray(0);
+			final ExportOptions options = ExportOptions.fromParams(args.optJSONObject(1) != null ? args.getJSONObject(1) : new JSONObject());
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					processImages(items, options, callbackContext);
+				}
+			});
+			return true;
+		} else if (action.equals("getPendingResults")) {
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					try {
+						sendPendingResults(callbackContext);
+					} catch (JSONException e) {
+						callbackContext.error(e.getMessage());
+					}
+				}
+			});
+			return true;
+		} else if (action.equals("setThumbnailPregeneration")) {
+			final boolean enabled = args.optBoolean(0, false);
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					ThumbnailJobService.setEnabled(cordova.getActivity(), enabled);
+					callbackContext.success();
+				}
+			});
+			return true;
+		} else if (action.equals("warmUp")) {
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					callbackContext.success(PickerWarmUp.getInstance().warmUp(cordova.getActivity()));
+				}
+			});
+			return true;
+		} else if (action.equals("getBuckets")) {
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					try {
+						callbackContext.success(BucketIndex.getInstance().toJSON(cordova.getActivity()));
+					} catch (Exception e) {
+						callbackContext.error(e.getMessage());
+					}
+				}
+			});
+			return true;
+		} else if (action.equals("queryMedia")) {
+			final JSONObject query = args.optJSONObject(0) != null ? args.getJSONObject(0) : new JSONObject();
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					try {
+						callbackContext.success(new MediaQuery(cordova.getActivity().getContentResolver()).query(query));
+					} catch (Exception e) {
+						callbackContext.error(e.getMessage());
+					}
+				}
+			});
+			return true;
+		}
 		if (action.equals("getPictures")) {
-			Intent intent = new Intent(cordova.getActivity(), MultiImageChooserActivity.class);
-			int max = 20;
-			int desiredWidth = 0;
-			int desiredHeight = 0;
-			int quality = 100;
-			String title = "Processing Images";
-			String description = "This may take a few moments";
-			if (this.params.has("maximumImagesCount")) {
-				max = this.params.getInt("maximumImagesCount");
-			}
-			if (this.params.has("width")) {
-				desiredWidth = this.params.getInt("width");
-			}
-			if (this.params.has("height")) {
-				desiredWidth = this.params.getInt("height");
-			}
-			if (this.params.has("quality")) {
-				quality = this.params.getInt("quality");
-			}
-			if (this.params.has("title")) {
-				title = this.params.getString("title");
-			}
-			if (this.params.has("description")) {
-				description = this.params.getString("description");
-			}
-			intent.putExtra("MAX_IMAGES", max);
-			intent.putExtra("WIDTH", desiredWidth);
-			intent.putExtra("HEIGHT", desiredHeight);
-			intent.putExtra("QUALITY", quality);
-			intent.putExtra("TITLE", title);
-			intent.putExtra("DESCRIPTION", description);
-			if (this.cordova != null) {
-				this.cordova.startActivityForResult((CordovaPlugin) this, intent, 0);
-			}
+			final JSONObject params = args.getJSONObject(0);
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					final Intent intent;
+					try {
+						intent = createPickerIntent(params);
+					} catch (JSONException e) {
+						callbackContext.error(e.getMessage());
+						return;
+					}
+					cordova.getActivity().runOnUiThread(new Runnable() {
+						public void run() {
+							startPicker(intent, callbackContext);
+						}
+					});
+				}
+			});
 		}
 		return true;
 	}
+
+	private Intent createPickerIntent(JSONObject params) throws JSONException {
+		Intent intent = new Intent(cordova.getActivity(), MultiImageChooserActivity.class);
+		int max = 20;
+		int desiredWidth = 0;
+		int desiredHeight = 0;
+		int quality = 100;
+		boolean passthrough = false;
+		boolean losslessRotation = false;
+		boolean cache = false;
+		long cacheSize = ExportCache.DEFAULT_MAX_BYTES;
+		String format = ExportOptions.FORMAT_ORIGINAL;
+		long maxBytes = 0;
+		JSONArray renditions = null;
+		boolean detailedResults = false;
+		boolean hash = false;
+		String title = "Processing Images";
+		String description = "This may take a few moments";
+		String bucketId = null;
+		if (params.has("maximumImagesCount")) {
+			max = params.getInt("maximumImagesCount");
+		}
+		if (params.has("width")) {
+			desiredWidth = params.getInt("width");
+		}
+		if (params.has("height")) {
+			desiredHeight = params.getInt("height");
+		}
+		if (params.has("quality")) {
+			quality = params.getInt("quality");
+		}
+		if (params.has("passthrough")) {
+			passthrough = params.getBoolean("passthrough");
+		}
+		if (params.has("losslessRotation")) {
+			losslessRotation = params.getBoolean("losslessRotation");
+		}
+		if (params.has("cache")) {
+			cache = params.getBoolean("cache");
+		}
+		if (params.has("cacheSize")) {
+			cacheSize = params.getLong("cacheSize");
+		}
+		if (params.has("format")) {
+			format = params.getString("format");
+		}
+		if (params.has("maxBytes")) {
+			maxBytes = params.getLong("maxBytes");
+		}
+		if (params.has("detailedResults")) {
+			detailedResults = params.getBoolean("detailedResults");
+		}
+		if (params.has("hash")) {
+			hash = params.getBoolean("hash");
+		}
+		if (params.has("renditions")) {
+			renditions = params.getJSONArray("renditions");
+		}
+		if (params.has("title")) {
+			title = params.getString("title");
+		}
+		if (params.has("description")) {
+			description = params.getString("description");
+		}
+		if (params.has("bucketId") && !params.isNull("bucketId")) {
+			bucketId = params.getString("bucketId");
+		}
+		intent.putExtra("MAX_IMAGES", max);
+		intent.putExtra("WIDTH", desiredWidth);
+		intent.putExtra("HEIGHT", desiredHeight);
+		intent.putExtra("QUALITY", quality);
+		intent.putExtra("PASSTHROUGH", passthrough);
+		intent.putExtra("LOSSLESS_ROTATION", losslessRotation);
+		intent.putExtra("CACHE", cache);
+		intent.putExtra("CACHE_SIZE", cacheSize);
+		intent.putExtra("FORMAT", format);
+		intent.putExtra("MAX_BYTES", maxBytes);
+		intent.putExtra("DETAILED_RESULTS", detailedResults);
+		intent.putExtra("HASH", hash);
+		if (renditions != null && renditions.length() > 0) {
+			intent.putExtra("RENDITIONS", renditions.toString());
+		}
+		intent.putExtra("TITLE", title);
+		intent.putExtra("DESCRIPTION", description);
+		if (bucketId != null && bucketId.length() > 0) {
+			intent.putExtra("BUCKET", bucketId);
+		}
+		return intent;
+	}
+
+	private void startPicker(Intent intent, CallbackContext callbackContext) {
+		// Fragment activities only take request codes of 16 bits.
+		int requestCode = nextRequestCode;
+		nextRequestCode = (nextRequestCode + 1) & 0xffff;
+		pickers.put(requestCode, callbackContext);
+		this.cordova.startActivityForResult((CordovaPlugin) this, intent, requestCode);
+	}
+	
+	/**
+	 * @return The callback of the picker that gave this result, null if it's unknown.
+	 */
+	private CallbackContext takePicker(int requestCode) {
+		CallbackContext callbackContext = pickers.remove(requestCode);
+		if (callbackContext == null) {
+			callbackContext = restoredCallbackContext;
+			restoredCallbackContext = null;
+		}
+		if (!pickers.isEmpty()) {
+			// Cordova forgets the plugin after each result, the other pickers still have theirs to give.
+			cordova.setActivityResultCallback(this);
+		}
+		return callbackContext;
+	}
 	
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
+		final CallbackContext callbackContext = takePicker(requestCode);
+		if (callbackContext == null) {
+			// Nowhere to deliver to, the results stay pending in the queue.
+			return;
+		}
 		if (resultCode == Activity.RESULT_OK && data != null) {
-			ArrayList<String> fileNames = data.getStringArrayListExtra("MULTIPLEFILENAMES");
-			JSONArray res = new JSONArray(fileNames);
-			this.callbackContext.success(res);
+			final ExportQueue queue = ExportQueue.getInstance(cordova.getActivity());
+			final String jobId = data.getStringExtra(MultiImageChooserActivity.JOB_ID_KEY);
+			// Thousands of results take a while to describe, not on the UI thread. Looking the
+			// job up may wait for the queue to load, too.
+			cordova.getThreadPool().execute(new Runnable() {
+				public void run() {
+					ExportQueue.Job job = queue.getJob(jobId);
+					if (job == null) {
+						callbackContext.error("The export results are gone.");
+						return;
+					}
+					// getPendingResults may have taken them in the meantime.
+					if (!queue.delivered(job)) {
+						callbackContext.error("The export results are gone.");
+						return;
+					}
+					try {
+						sendResults(job, callbackContext);
+					} catch (JSONException e) {
+						callbackContext.error(e.getMessage());
+					}
+				}
+			});
 		} else if (resultCode == Activity.RESULT_CANCELED && data != null) {
 			String error = data.getStringExtra("ERRORMESSAGE");
-			this.callbackContext.error(error);
+			callbackContext.error(error);
 		} else if (resultCode == Activity.RESULT_CANCELED) {
-			JSONArray res = new JSONArray();
-			this.callbackContext.success(res);
+			try {
+				sendChunk(callbackContext, new JSONArray(), false);
+			} catch (JSONException e) {
+				callbackContext.error(e.getMessage());
+			}
+		} else {
+			callbackContext.error("No images selected");
+		}
+	}
+
+	/**
+	 * Sends the results of a job a chunk at a time, each chunk a message of its own on the
+	 * kept callback, so a large selection never crosses the bridge as a single string. The
+	 * JavaScript side puts the chunks back together. The URIs of the images are sent, or with
+	 * options like passthrough or maxBytes an object per image. The images that couldn't be
+	 * exported come last, as { item, error }.
+	 */
+	private static void sendResults(ExportQueue.Job job, CallbackContext callbackContext) throws JSONException {
+		if (ExportQueue.STATUS_FAILED.equals(job.getStatus())) {
+			callbackContext.error(job.getError());
+			return;
+		}
+		List<ImageExporter.Result> results = job.getResults();
+		boolean detailed = job.options.hasDetailedResults();
+		JSONArray chunk = new JSONArray();
+		for (ImageExporter.Result result : results) {
+			chunk.put(detailed ? result.toJSON() : result.getUri());
+			if (chunk.length() == RESULTS_CHUNK_SIZE) {
+				sendChunk(callbackContext, chunk, true);
+				chunk = new JSONArray();
+			}
+		}
+		for (Map.Entry<SelectedImage, String> failure : job.getFailures().entrySet()) {
+			chunk.put(describeFailure(failure.getKey(), failure.getValue()));
+			if (chunk.length() == RESULTS_CHUNK_SIZE) {
+				sendChunk(callbackContext, chunk, true);
+				chunk = new JSONArray();
+			}
+		}
+		if (ExportQueue.STATUS_CANCELLED.equals(job.getStatus())) {
+			sendChunk(callbackContext, chunk, true);
+			// The user stopped the export, the images done by then were sent already.
+			JSONObject cancelled = new JSONObject();
+			cancelled.put("cancelled", true);
+			cancelled.put("message", "The export was cancelled.");
+			callbackContext.error(cancelled);
+		} else {
+			sendChunk(callbackContext, chunk, false);
+		}
+		// Only now may the output limits take the files.
+		job.handedBack();
+	}
+
+	/**
+	 * Exports the given images without any UI. They are resolved and exported a batch at a
+	 * time, the results of each batch are sent as soon as it is done and only the current
+	 * batch is held in memory. An item that can't be exported gets { item, error } and the
+	 * others go on.
+	 */
+	private void processImages(JSONArray items, ExportOptions options, CallbackContext callbackContext) {
+		ImageExporter exporter = new ImageExporter(cordova.getActivity(), options);
+		ImageResolver resolver = new ImageResolver(cordova.getActivity().getContentResolver());
+		ImageExporter.Cancellation cancellation = new ImageExporter.Cancellation();
+		OutputStore.Session session = null;
+		try {
+			session = OutputStore.getInstance(cordova.getActivity()).beginSession();
+			for (int start = 0; start < items.length(); start += PROCESS_BATCH_SIZE) {
+				List<Object> batch = new ArrayList<Object>();
+				for (int i = start; i < Math.min(start + PROCESS_BATCH_SIZE, items.length()); i++) {
+					batch.add(items.opt(i));
+				}
+				List<SelectedImage> images = resolver.resolve(batch);
+				JSONArray chunk = new JSONArray();
+				for (int i = 0; i < batch.size(); i++) {
+					SelectedImage image = images.get(i);
+					String error;
+					try {
+						if (image == null) {
+							throw new IOException("Image not found.");
+						}
+						chunk.put(exporter.export(image, session, cancellation).toJSON());
+						continue;
+					} catch (IOException e) {
+						error = e.getMessage();
+					} catch (RuntimeException e) {
+						// A bad image must not take down the others, nor leave the callback open.
+						error = e.toString();
+					} catch (OutOfMemoryError e) {
+						error = e.toString();
+					}
+					JSONObject failed = new JSONObject();
+					failed.put("item", batch.get(i));
+					failed.put("error", error);
+					chunk.put(failed);
+				}
+				sendChunk(callbackContext, chunk, true);
+			}
+			sendChunk(callbackContext, new JSONArray(), false);
+			// Only now may the output limits take the files.
+			session.complete();
+		} catch (IOException e) {
+			if (session != null) {
+				session.abort();
+			}
+			callbackContext.error(e.getMessage());
+		} catch (JSONException e) {
+			if (session != null) {
+				session.abort();
+			}
+			callbackContext.error(e.getMessage());
+		}
+	}
+
+	private static void sendChunk(CallbackContext callbackContext, JSONArray chunk, boolean more) throws JSONException {
+		sendChunk(callbackContext, null, chunk, more);
+	}
+
+	/**
+	 * @param job Description of the job the following chunks belong to, for getPendingResults.
+	 */
+	private static void sendChunk(CallbackContext callbackContext, JSONObject job, JSONArray chunk, boolean more) throws JSONException {
+		JSONObject message = new JSONObject();
+		message.putOpt("job", job);
+		message.put("results", chunk);
+		message.put("more", more);
+		PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+		result.setKeepCallback(more);
+		callbackContext.sendPluginResult(result);
+	}
+
+	/**
+	 * Sends the exports whose results never made it back, typically because the app was
+	 * killed. Finished ones are returned once.
+	 * <p/>
+	 * Sent in chunks like the results of the picker: a message per job with its description,
+	 * then its results RESULTS_CHUNK_SIZE at a time, for the JavaScript side to add to the job.
+	 */
+	private void sendPendingResults(CallbackContext callbackContext) throws JSONException {
+		ExportQueue queue = ExportQueue.getInstance(cordova.getActivity());
+		List<ExportQueue.Job> delivered = new ArrayList<ExportQueue.Job>();
+		for (ExportQueue.Job job : queue.getJobs()) {
+			JSONObject entry = new JSONObject();
+			entry.put("jobId", job.id);
+			entry.put("status", job.getStatus());
+			entry.put("done", job.getDoneCount());
+			entry.put("total", job.images.size());
+			if (job.isFinished()) {
+				if (!queue.delivered(job)) {
+					// Taken by the picker or another call in the meantime.
+					continue;
+				}
+				if (job.getError() != null) {
+					entry.put("error", job.getError());
+				}
+				entry.put("results", new JSONArray());
+				delivered.add(job);
+			}
+			sendChunk(callbackContext, entry, new JSONArray(), true);
+			// Not isFinished again, the job may have finished since it was described.
+			if (delivered.contains(job)) {
+				JSONArray results = getResults(job);
+				JSONArray chunk = new JSONArray();
+				for (int i = 0; i < results.length(); i++) {
+					chunk.put(results.get(i));
+					if (chunk.length() == RESULTS_CHUNK_SIZE) {
+						sendChunk(callbackContext, null, chunk, true);
+						chunk = new JSONArray();
+					}
+				}
+				if (chunk.length() > 0) {
+					sendChunk(callbackContext, null, chunk, true);
+				}
+			}
+		}
+		sendChunk(callbackContext, new JSONArray(), false);
+		// Only now may the output limits take the files.
+		for (ExportQueue.Job job : delivered) {
+			job.handedBack();
+		}
+	}
+
+	private static JSONArray getResults(ExportQueue.Job job) throws JSONException {
+		JSONArray res = new JSONArray();
+		for (ImageExporter.Result result : job.getResults()) {
+			if (job.options.hasDetailedResults()) {
+				res.put(result.toJSON());
+			} else {
+				res.put(result.getUri());
+			}
+		}
+		for (Map.Entry<SelectedImage, String> failure : job.getFailures().entrySet()) {
+			res.put(describeFailure(failure.getKey(), failure.getValue()));
+		}
+		return res;
+	}
+
+	/**
+	 * @return { item, error } for a picked image that couldn't be exported, like processImages
+	 * gives. The item is the MediaStore id of the image, or its path.
+	 */
+	private static JSONObject describeFailure(SelectedImage image, String error) throws JSONException {
+		JSONObject failed = new JSONObject();
+		if (image.id >= 0) {
+			failed.put("item", image.id);
 		} else {
-			this.callbackContext.error("No images selected");
+			failed.put("item", image.path);
 		}
+		failed.put("error", error);
+		return failed;
 	}
 }
\ No newline at end of file
@@ -20,6 +20,32 @@ var ImagePicker = function() {
 *		         image will be returned)
 *		.height - height to resize image to
 *		.quality - quality of resized image, defaults to 100
+*		.passthrough - (Android) return the original file instead of a copy when no resize is
+*		               needed
+*		.losslessRotation - (Android) store the rotation of resized JPEGs in their EXIF header
+*		                    instead of rotating the pixels
+*		.cache - (Android) keep processed images in a persistent cache, picking the same images
+*		         with the same options again returns the cached files
+*		.cacheSize - (Android) size cap of that cache in bytes, defaults to 100MB
+*		.format - (Android) output format: 'original' (default), 'jpeg', 'png', 'webp' or
+*		          'webp-lossless'
+*		.maxBytes - (Android) encoded size to stay under, lossy formats lower their quality to fit
+*		            a result still over it (e.g. a PNG) has limitMet: false
+*		.renditions - (Android) smaller versions to produce from the same decode, a list of
+*		              { width, height, quality, format }
+*		.detailedResults - (Android) return objects describing each image instead of URIs
+*		.hash - (Android) compute the SHA-256 of each result while it is written, pictures
+*		        giving identical files are returned once
+*		.bucketId - (Android) open the picker on this album, see getBuckets. The user can
+*		            still switch to another one
+*
+*	With detailedResults, hash, passthrough, a format other than 'original', maxBytes or renditions,
+*	results are objects: { uri, original, format, quality (when the image was encoded), bytes,
+*	mimeType, width, height, orientation, rotated, id, dateTaken, processingTime, sha256,
+*	duplicates, renditions }
+*
+*	If the user stops the export, fail receives { cancelled: true, message, results }, results
+*	being the images done by then.
 */
 ImagePicker.prototype.getPictures = function(success, fail, options) {
 	if (!options) {
@@ -31,11 +57,162 @@ ImagePicker.prototype.getPictures = function(success, fail, options) {
 		width: options.width ? options.width : 0,
 		height: options.height ? options.height : 0,
 		quality: options.quality ? options.quality : 100,
+		passthrough: options.passthrough ? true : false,
+		losslessRotation: options.losslessRotation ? true : false,
+		cache: options.cache ? true : false,
+		cacheSize: options.cacheSize ? options.cacheSize : 100 * 1024 * 1024,
+		format: options.format ? options.format : 'original',
+		maxBytes: options.maxBytes ? options.maxBytes : 0,
+		renditions: options.renditions ? options.renditions : [],
+		detailedResults: options.detailedResults ? true : false,
+		hash: options.hash ? true : false,
 		title: options.title ? options.title : 'Processing Images',
-		description: options.description ? options.description : 'This may take a few moments'
+		description: options.description ? options.description : 'This may take a few moments',
+		bucketId: options.bucketId ? String(options.bucketId) : null
 	};
 
-	return cordova.exec(success, fail, "ImagePicker", "getPictures", [params]);
+	// The results come in chunks, a large selection doesn't go over the bridge at once.
+	// Platforms that don't chunk (iOS) send the plain array of results.
+	var results = [];
+	return cordova.exec(function(message) {
+		if (Array.isArray(message)) {
+			if (success) {
+				success(message);
+			}
+			return;
+		}
+		Array.prototype.push.apply(results, message.results);
+		if (!message.more && success) {
+			success(results);
+		}
+	}, function(error) {
+		if (error && error.cancelled) {
+			error.results = results;
+		}
+		if (fail) {
+			fail(error);
+		}
+	}, "ImagePicker", "getPictures", [params]);
+};
+
+/*
+*	Resizes and encodes images without showing the picker.
+*
+*	success - success callback, receives a result object per item, in order. Items that could
+*	          not be processed get { item, error } instead.
+*	fail - error callback
+*	items - MediaStore ids (numbers), or file paths or file:// URIs
+*	options - the processing options of getPictures: width, height, quality, format, maxBytes,
+*	          renditions, cache, hash...
+*	progress - optional, receives the results of each batch as soon as it is done
+*/
+ImagePicker.prototype.processImages = function(success, fail, items, options, progress) {
+	var results = [];
+	return cordova.exec(function(message) {
+		Array.prototype.push.apply(results, message.results);
+		if (progress && message.results.length > 0) {
+			progress(message.results);
+		}
+		if (!message.more && success) {
+			success(results);
+		}
+	}, fail, "ImagePicker", "processImages", [items || [], options || {}]);
+};
+
+/*
+*	success - success callback, receives the exports whose results were not delivered, for
+*	          example because the app was killed while they ran:
+*	          [{ jobId, status, done, total, error, results }]. status is 'running', 'done',
+*	          'cancelled' or 'failed', results are only there once the export is finished and
+*	          are not returned again.
+*	fail - error callback
+*/
+ImagePicker.prototype.getPendingResults = function(success, fail) {
+	// Each job comes in a message of its own, followed by its results in chunks.
+	var pending = [];
+	return cordova.exec(function(message) {
+		if (message.job) {
+			pending.push(message.job);
+		}
+		if (message.results.length > 0) {
+			Array.prototype.push.apply(pending[pending.length - 1].results, message.results);
+		}
+		if (!message.more && success) {
+			success(pending);
+		}
+	}, fail, "ImagePicker", "getPendingResults", []);
+};
+
+/*
+*	success - success callback, receives { hits, misses, entries, bytes, maxBytes }
+*	fail - error callback
+*/
+ImagePicker.prototype.getCacheStats = function(success, fail) {
+	return cordova.exec(success, fail, "ImagePicker", "getCacheStats", []);
+};
+
+/*
+*	success - success callback, receives the number of files deleted
+*	fail - error callback
+*	uris - result URIs the app is done with. Only files written by the plugin are deleted,
+*	       original pictures returned in passthrough mode and cache entries are left alone.
+*/
+ImagePicker.prototype.releaseResults = function(success, fail, uris) {
+	return cordova.exec(success, fail, "ImagePicker", "releaseResults", [uris || []]);
+};
+
+/*
+*	success - success callback
+*	fail - error callback
+*	limits
+*		.maxBytes - size quota of the output directory, the oldest results are deleted past it.
+*		            Defaults to 200MB
+*		.maxAge - results older than this many milliseconds are deleted. Defaults to 7 days
+*/
+ImagePicker.prototype.setOutputLimits = function(success, fail, limits) {
+	return cordova.exec(success, fail, "ImagePicker", "setOutputLimits", [limits || {}]);
+};
+
+/*
+*	success - success callback, receives a page of the gallery, newest first, one array per
+*	          column: { ids, dateModified, dateTaken, width, height, orientation, mimeType, next }.
+*	          next is null on the last page
+*	fail - error callback
+*	query
+*		.after - the next value of the previous page, omitted for the first page
+*		.limit - images per page, at most 1000. Defaults to 100
+*		.bucketId - only the images of this album
+*		.mimeTypes - only the images of these types, e.g. ['image/jpeg', 'image/png']
+*/
+ImagePicker.prototype.queryMedia = function(success, fail, query) {
+	return cordova.exec(success, fail, "ImagePicker", "queryMedia", [query || {}]);
+};
+
+/*
+*	success - success callback, receives the albums of the gallery, newest first:
+*	          [{ id, name, count, coverId }]. coverId is the id of the newest image
+*	fail - error callback
+*/
+ImagePicker.prototype.getBuckets = function(success, fail) {
+	return cordova.exec(success, fail, "ImagePicker", "getBuckets", []);
+};
+
+/*
+*	success - success callback
+*	fail - error callback
+*	enabled - true to make the thumbnails of the whole gallery in the background, while the
+*	          device is idle and charging. Stays on until turned off. Android 5.0 and later
+*/
+ImagePicker.prototype.setThumbnailPregeneration = function(success, fail, enabled) {
+	return cordova.exec(success, fail, "ImagePicker", "setThumbnailPregeneration", [!!enabled]);
+};
+
+/*
+*	success - success callback, receives the number of thumbnails ready
+*	fail - error callback
+*/
+ImagePicker.prototype.warmUp = function(success, fail) {
+	return cordova.exec(success, fail, "ImagePicker", "warmUp", []);
 };
 
 window.imagePicker = new ImagePicker();